@@ -0,0 +1,175 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import benchmark.CanvasFixture;
+
+// benchmark.CanvasBenchmark 量測的操作：與 CanvasPanel 同在預設套件，可以呼叫它的套件內方法
+public class CanvasScenarios implements CanvasFixture {
+    private static final int VIEW_WIDTH = 1280, VIEW_HEIGHT = 800;
+    private static final int QUERY_COUNT = 4096;
+    // moveConnectedShape 移動的形狀所連到的形狀數
+    private static final int HUB_LINKS = 1000;
+
+    private CanvasPanel canvas;
+    private List<Shape> topLevel;
+    private int[][] points;
+    private Rectangle bounds;
+    private Shape dragged;
+    private CanvasPanel hubCanvas;
+    private Shape hub;
+    private BufferedImage image;
+    private Graphics2D graphics;
+    private Graphics2D antialiased;
+
+    @Override
+    public void setUp(int shapes, double links, int depth) {
+        canvas = new CanvasPanel();
+        canvas.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+        topLevel = DiagramGenerator.generate(canvas, shapes, links, depth, 42);
+        points = randomPoints(topLevel, 1);
+        bounds = canvas.getDiagramBounds();
+
+        // 拖曳連線最多的最上層形狀
+        dragged = topLevel.get(0);
+        for (Shape shape : topLevel) {
+            if (shape.links.size() > dragged.links.size()) dragged = shape;
+        }
+
+        // 另一份相同的圖表再加上一個連線很多的形狀，其他測試的圖表不受影響
+        hubCanvas = new CanvasPanel();
+        hubCanvas.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+        hub = addHub(hubCanvas, DiagramGenerator.generate(hubCanvas, shapes, links, depth, 42));
+
+        image = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        graphics = image.createGraphics();
+        antialiased = image.createGraphics();
+        antialiased.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    @Override
+    public long findShapeAt(int i) {
+        int[] p = points[i & (QUERY_COUNT - 1)];
+        Shape hit = canvas.findShapeAt(p[0], p[1]);
+        return hit == null ? 0 : hit.x;
+    }
+
+    @Override
+    public long selectShapesInArea(int i) {
+        int[] p = points[i & (QUERY_COUNT - 1)];
+        canvas.selectShapesInArea(new Rectangle(p[0], p[1], 3 * DiagramGenerator.SPACING, 2 * DiagramGenerator.SPACING));
+        return canvas.getSelection().size();
+    }
+
+    // 從圖表左上角拉出選取框，每次放大或縮小 16 個單位，模擬拖曳中的框選
+    @Override
+    public long updateSelectionPreview(int i) {
+        int step = i & 511;
+        int size = (step < 256 ? step : 511 - step) * 16;
+        canvas.updateSelectionPreview(new Rectangle(bounds.x, bounds.y, size, size));
+        return size;
+    }
+
+    // 來回平移形狀，每次會移動形狀並更新其連線。拖曳事件會被合併到下一個畫面間隔再套用，
+    // 因此直接呼叫拖曳時套用位移的 translateShape
+    @Override
+    public long dragShape(int i) {
+        int delta = (i & 1) == 0 ? 1 : -1;
+        canvas.translateShape(dragged, delta, delta);
+        return dragged.x;
+    }
+
+    // 來回平移連到 HUB_LINKS 個形狀的形狀，量測大量連線端點的更新
+    @Override
+    public long moveConnectedShape(int i) {
+        int delta = (i & 1) == 0 ? 1 : -1;
+        hubCanvas.translateShape(hub, delta, delta);
+        return hub.x;
+    }
+
+    // 輪流把形狀移到最上層與最下層，量測堆疊順序的更新（含覆蓋計數）
+    @Override
+    public long raiseLowerShape(int i) {
+        Shape shape = topLevel.get((i >>> 1) % topLevel.size());
+        if ((i & 1) == 0) {
+            canvas.raiseShape(shape);
+        } else {
+            canvas.lowerShape(shape);
+        }
+        return shape.z;
+    }
+
+    // 每次選取相鄰的八個最上層形狀，組合後再拆開
+    @Override
+    public long groupUngroup(int i) {
+        int from = (i * 8) % Math.max(1, topLevel.size() - 8);
+        canvas.getSelection().setAll(topLevel.subList(from, Math.min(topLevel.size(), from + 8)));
+        canvas.groupSelectedShapes();
+        canvas.ungroupSelectedShape();
+        return canvas.getSelection().size();
+    }
+
+    @Override
+    public long paint(int i) {
+        canvas.paintComponent(graphics);
+        return image.getRGB(i % VIEW_WIDTH, 0);
+    }
+
+    // 每次都讓靜態圖層失效，量測完整重繪的成本
+    @Override
+    public long paintCold(int i) {
+        canvas.invalidateStaticLayer();
+        canvas.paintComponent(antialiased);
+        return image.getRGB(i % VIEW_WIDTH, 0);
+    }
+
+    // 在圖表上方加入一個形狀，從它的底部連到平均分散在圖表中的葉形狀
+    private static Shape addHub(CanvasPanel canvas, List<Shape> topLevel) {
+        ArrayList<Shape> leaves = new ArrayList<>();
+        for (Shape shape : topLevel) {
+            collectLeaves(shape, leaves);
+        }
+        Rectangle area = canvas.getDiagramBounds();
+        Shape hub = canvas.addShape("rect", area.x + area.width / 2, area.y - 2 * DiagramGenerator.SPACING);
+        int count = Math.min(HUB_LINKS, leaves.size());
+        for (int k = 0; k < count; k++) {
+            Shape leaf = leaves.get((int) ((long) k * leaves.size() / count));
+            // 子形狀的座標相對於上層
+            int x = 0, y = 0;
+            for (Shape s = leaf; s != null; s = s.parent) {
+                x += s.x;
+                y += s.y;
+            }
+            canvas.addLink("association", hub, leaf, hub.x + hub.width / 2, hub.y + hub.height, x + leaf.width / 2, y);
+        }
+        return hub;
+    }
+
+    private static void collectLeaves(Shape shape, List<Shape> leaves) {
+        if (!shape.isComposite()) {
+            leaves.add(shape);
+            return;
+        }
+        for (Shape child : shape.children) {
+            collectLeaves(child, leaves);
+        }
+    }
+
+    private static int[][] randomPoints(List<Shape> topLevel, long seed) {
+        int maxX = 1, maxY = 1;
+        for (Shape shape : topLevel) {
+            maxX = Math.max(maxX, shape.x + shape.width);
+            maxY = Math.max(maxY, shape.y + shape.height);
+        }
+        Random random = new Random(seed);
+        int[][] points = new int[QUERY_COUNT][];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            points[i] = new int[]{random.nextInt(maxX), random.nextInt(maxY)};
+        }
+        return points;
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// 產生效能測試用的合成圖表：形狀排成方陣，連線接到附近的形狀，再依深度逐層組合
+class DiagramGenerator {
+    static final int SPACING = 160;
+    private static final String[] LINK_TYPES = {"association", "generalization", "composition"};
+    private static final int GROUP_FANOUT = 4;
+
+    private DiagramGenerator() {
+    }
+
+    // 回傳產生後的最上層形狀
+    static List<Shape> generate(CanvasPanel canvas, int shapeCount, double linksPerShape, int depth, long seed) {
+        Random random = new Random(seed);
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(shapeCount)));
+
+        // 形狀
+        List<Shape> leaves = new ArrayList<>(shapeCount);
+        for (int i = 0; i < shapeCount; i++) {
+            int x = (i % columns) * SPACING;
+            int y = (i / columns) * SPACING;
+            leaves.add(canvas.addShape(random.nextBoolean() ? "rect" : "oval", x, y));
+        }
+
+        // 連線：連到方陣中鄰近兩格以內的形狀，從右側中點連到左側中點
+        int linkCount = (int) Math.round(shapeCount * linksPerShape);
+        for (int i = 0; i < linkCount && shapeCount > 1; i++) {
+            int from = random.nextInt(shapeCount);
+            int col = from % columns + random.nextInt(5) - 2;
+            int row = from / columns + random.nextInt(5) - 2;
+            int to = Math.floorMod(row, Math.max(1, (shapeCount + columns - 1) / columns)) * columns
+                    + Math.floorMod(col, columns);
+            if (to >= shapeCount || to == from) to = (from + 1) % shapeCount;
+
+            Shape start = leaves.get(from), end = leaves.get(to);
+            canvas.addLink(LINK_TYPES[random.nextInt(LINK_TYPES.length)], start, end,
+                    start.x + start.width, start.y + start.height / 2,
+                    end.x, end.y + end.height / 2);
+        }
+
+        // 組合：每層把相鄰的 GROUP_FANOUT 個形狀組成一個 composite
+        List<Shape> level = leaves;
+        for (int d = 0; d < depth && level.size() > 1; d++) {
+            List<Shape> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += GROUP_FANOUT) {
+                List<Shape> chunk = level.subList(i, Math.min(level.size(), i + GROUP_FANOUT));
+                if (chunk.size() < 2) {
+                    next.addAll(chunk);
+                    continue;
+                }
+                canvas.getSelection().setAll(chunk);
+                canvas.groupSelectedShapes();
+                next.add(canvas.getSelection().first());
+            }
+            level = next;
+        }
+        canvas.getSelection().clear();
+        // 產生過程不應成為可復原的編輯
+        canvas.resetHistory();
+
+        return level;
+    }
+}
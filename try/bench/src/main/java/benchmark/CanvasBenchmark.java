@@ -0,0 +1,91 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CanvasPanel 熱點路徑的無頭效能測試，依形狀數量、連線密度與組合深度參數化。
+// 每項測試在新的 JVM 中以新產生的圖表執行，前一項測試留下的狀態不會影響結果
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class CanvasBenchmark {
+    @Param({"1000", "10000"})
+    public int shapes;
+
+    @Param({"1.0", "4.0"})
+    public double links;
+
+    @Param({"0", "2"})
+    public int depth;
+
+    private CanvasFixture fixture;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        // JMH 不接受預設套件中的測試類別，只能以名稱取得預設套件中的實作
+        fixture = (CanvasFixture) Class.forName("CanvasScenarios").getDeclaredConstructor().newInstance();
+        fixture.setUp(shapes, links, depth);
+        i = 0;
+    }
+
+    @Benchmark
+    public long findShapeAt() {
+        return fixture.findShapeAt(i++);
+    }
+
+    @Benchmark
+    public long selectShapesInArea() {
+        return fixture.selectShapesInArea(i++);
+    }
+
+    @Benchmark
+    public long updateSelectionPreview() {
+        return fixture.updateSelectionPreview(i++);
+    }
+
+    @Benchmark
+    public long dragShape() {
+        return fixture.dragShape(i++);
+    }
+
+    @Benchmark
+    public long moveConnectedShape() {
+        return fixture.moveConnectedShape(i++);
+    }
+
+    @Benchmark
+    public long raiseLowerShape() {
+        return fixture.raiseLowerShape(i++);
+    }
+
+    @Benchmark
+    public long groupUngroup() {
+        return fixture.groupUngroup(i++);
+    }
+
+    @Benchmark
+    public long paintComponent() {
+        return fixture.paint(i++);
+    }
+
+    @Benchmark
+    public long paintComponentCold() {
+        return fixture.paintCold(i++);
+    }
+}
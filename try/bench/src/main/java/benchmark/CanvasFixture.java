@@ -0,0 +1,27 @@
+package benchmark;
+
+// 效能測試在 CanvasPanel 上執行的操作。編輯器的類別都在預設套件中，
+// 具名套件無法直接引用，因此由預設套件中的 CanvasScenarios 實作這個介面。
+// 每個操作以呼叫次數 i 選擇這次的輸入，回傳值交給 JMH 消耗，避免呼叫被 JIT 消除
+public interface CanvasFixture {
+    // 產生 shapes 個形狀、每個形狀平均 links 條連線、組合 depth 層的圖表
+    void setUp(int shapes, double links, int depth);
+
+    long findShapeAt(int i);
+
+    long selectShapesInArea(int i);
+
+    long updateSelectionPreview(int i);
+
+    long dragShape(int i);
+
+    long moveConnectedShape(int i);
+
+    long raiseLowerShape(int i);
+
+    long groupUngroup(int i);
+
+    long paint(int i);
+
+    long paintCold(int i);
+}
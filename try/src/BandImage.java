@@ -0,0 +1,176 @@
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+// 由上到下切成橫帶、讀取到哪一條才繪製哪一條的 TYPE_INT_RGB 影像，同時只保留一條橫帶。
+// PNG 編碼逐列讀取影像，因此整張影像不需要同時放在記憶體中；以其他順序讀取結果相同，只是橫帶會重複繪製
+final class BandImage implements RenderedImage {
+    // 把影像第 y 列起、高 band.getHeight() 列的部分畫到 band 上；band 為 TYPE_INT_RGB，寬度與整張影像相同
+    interface Painter {
+        void paint(BufferedImage band, int y);
+    }
+
+    private final int width, height, bandHeight;
+    private final Painter painter;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    // 最近繪製的橫帶與它的第一列；尚未繪製時 bandY 為 -1
+    private BufferedImage buffer;
+    private BufferedImage band;
+    private int bandY = -1;
+
+    BandImage(int width, int height, int bandHeight, Painter painter) {
+        this.width = width;
+        this.height = height;
+        this.bandHeight = Math.max(1, Math.min(bandHeight, height));
+        this.painter = painter;
+        BufferedImage template = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        this.colorModel = template.getColorModel();
+        this.sampleModel = template.getSampleModel().createCompatibleSampleModel(width, this.bandHeight);
+    }
+
+    // 讀取的範圍可以跨越多條橫帶，每次回傳新的 Raster
+    @Override
+    public synchronized Raster getData(Rectangle rect) {
+        Rectangle area = rect.intersection(new Rectangle(0, 0, width, height));
+        WritableRaster out = Raster.createWritableRaster(
+            sampleModel.createCompatibleSampleModel(Math.max(1, area.width), Math.max(1, area.height)),
+            new Point(area.x, area.y));
+        copyArea(area, out);
+        return out;
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public synchronized WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) return (WritableRaster) getData();
+        copyArea(raster.getBounds().intersection(new Rectangle(0, 0, width, height)), raster);
+        return raster;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(0, tileY * bandHeight, width, bandHeight));
+    }
+
+    private void copyArea(Rectangle area, WritableRaster out) {
+        for (int y = area.y; y < area.y + area.height; ) {
+            BufferedImage current = bandAt(y);
+            int rows = Math.min(area.y + area.height, bandY + current.getHeight()) - y;
+            out.setRect(current.getRaster().createChild(area.x, y - bandY, area.width, rows, area.x, y, null));
+            y += rows;
+        }
+    }
+
+    // 包含第 y 列的橫帶，不是最近繪製的那一條時重新繪製
+    private BufferedImage bandAt(int y) {
+        int start = y / bandHeight * bandHeight;
+        if (start != bandY) {
+            if (buffer == null) buffer = new BufferedImage(width, bandHeight, BufferedImage.TYPE_INT_RGB);
+            int rows = Math.min(bandHeight, height - start);
+            band = rows == bandHeight ? buffer : buffer.getSubimage(0, 0, width, rows);
+            bandY = -1;
+            painter.paint(band, start);
+            bandY = start;
+        }
+        return band;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return sampleModel;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    // 每條橫帶是一個 tile
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return bandHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+}
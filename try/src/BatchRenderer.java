@@ -0,0 +1,192 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.awt.image.RenderedImage;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// 無頭批次輸出：讀取圖表檔案，以 CanvasPanel 的繪製邏輯輸出 PNG 與 / 或 SVG，不需要顯示器。
+// 多個圖表在 ForkJoinPool 上平行處理，結束時回報處理速度。PNG 逐條橫帶繪製並編碼，
+// 每個工作只佔用一條橫帶的記憶體。每個輸出先寫到暫存檔，完成後才換成正式的檔名，
+// 失敗的圖表不會留下寫到一半的檔案，也不會中斷其他圖表。
+//
+// 編譯與執行（於 try/ 目錄）：
+//   javac -encoding UTF-8 -d bin src/*.java
+//   java -cp bin BatchRenderer --format png,svg --out out diagrams/
+//
+// 參數可以是圖表檔案或目錄（遞迴尋找 .wfd 檔案）。其他選項：
+//   --scale <倍率>    PNG 每個畫布單位的像素數，預設 1
+//   --threads <數量>  同時處理的圖表數，預設為處理器數
+//   --out <目錄>      輸出目錄，預設與輸入檔案相同
+// 有任何圖表失敗時結束碼為 1
+public class BatchRenderer {
+    // PNG 壓縮品質 0.9 對應最快的 deflate 等級：檔案約大 3%，編碼時間約為預設的一半
+    private static final float PNG_COMPRESSION_QUALITY = 0.9f;
+
+    private boolean png = true, svg = false;
+    private double scale = 1.0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path outDir = null;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        // 編碼時直接寫入輸出串流，不經過暫存檔
+        ImageIO.setUseCache(false);
+
+        BatchRenderer renderer = new BatchRenderer();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                inputs.add(Paths.get(arg));
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("缺少選項的值: " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--format":
+                    renderer.png = value.contains("png");
+                    renderer.svg = value.contains("svg");
+                    if (!renderer.png && !renderer.svg) throw new IllegalArgumentException("未知的格式: " + value);
+                    break;
+                case "--scale": renderer.scale = Double.parseDouble(value); break;
+                case "--threads": renderer.threads = Integer.parseInt(value); break;
+                case "--out": renderer.outDir = Paths.get(value); break;
+                default: throw new IllegalArgumentException("未知的選項: " + arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("用法: java BatchRenderer [--format png,svg] [--scale 1] [--threads n] [--out 目錄] <檔案或目錄>...");
+            System.exit(2);
+        }
+
+        List<Path> files = collectDiagrams(inputs);
+        if (renderer.outDir != null) Files.createDirectories(renderer.outDir);
+        System.exit(renderer.renderAll(files) ? 0 : 1);
+    }
+
+    private static List<Path> collectDiagrams(List<Path> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        String suffix = "." + DiagramFile.EXTENSION;
+        for (Path input : inputs) {
+            if (!Files.isDirectory(input)) {
+                files.add(input);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(input)) {
+                walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(suffix))
+                    .sorted()
+                    .forEach(files::add);
+            }
+        }
+        return files;
+    }
+
+    // 每個圖表是一個工作；大圖表的 PNG 會再分塊，區塊工作在同一個 pool 裡互相竊取
+    private boolean renderAll(List<Path> files) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(ForkJoinTask.adapt(() -> render(file)));
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int succeeded = files.size() - failures.get();
+        System.out.printf("%d 個圖表（%d 個失敗），%.2f 秒，%.1f 個圖表/秒，%d 個執行緒%n",
+            files.size(), failures.get(), seconds, succeeded / seconds, threads);
+        return failures.get() == 0;
+    }
+
+    // 每個圖表使用自己的 CanvasPanel，不同工作之間不共用可變狀態。
+    // 記憶體不足也只算這個圖表失敗：它的影像與模型在離開後即可回收
+    private void render(Path file) {
+        try {
+            CanvasPanel canvas = new CanvasPanel();
+            DiagramFile.load(canvas, file.toFile());
+
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            Path dir = outDir != null ? outDir : file.toAbsolutePath().getParent();
+
+            if (png) {
+                RenderedImage image = canvas.renderImage(scale);
+                writeOutput(dir.resolve(base + ".png"), out -> writePng(image, out));
+            }
+            if (svg) {
+                writeOutput(dir.resolve(base + ".svg"), out -> {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+                    DiagramSvg.write(canvas, writer);
+                    writer.flush();
+                });
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            failures.incrementAndGet();
+            System.err.println("失敗：" + file + "：" + e.getMessage());
+        }
+    }
+
+    private interface Output {
+        void write(OutputStream out) throws IOException;
+    }
+
+    // 寫到同目錄的暫存檔，成功後取代 target；失敗時刪除暫存檔，原有的 target 保持不變
+    private static void writeOutput(Path target, Output output) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        boolean done = false;
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+                output.write(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // 保留原本的錯誤
+                }
+            }
+        }
+    }
+
+    private static void writePng(RenderedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(PNG_COMPRESSION_QUALITY);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
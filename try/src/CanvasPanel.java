@@ -1,74 +1,271 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
-class CanvasPanel extends JPanel {
-    // 常數
-    private static final Color SHAPE_COLOR = new Color(200, 200, 200);
+class CanvasPanel extends JPanel implements DiagramModel {
+    // 常數；繪製用的顏色、樣式與箭頭幾何也供 DiagramSvg 輸出相同的圖
+    static final Color SHAPE_COLOR = new Color(200, 200, 200);
     private static final Color SELECTION_COLOR = Color.BLUE;
     private static final Color SELECTION_FILL_COLOR = new Color(0, 0, 255, 50);
-    private static final int CONTROL_POINT_SIZE = 10;
+    static final Color CONTROL_POINT_COLOR = new Color(0, 0, 0, 150);
+    static final BasicStroke LINK_STROKE = new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    // 箭頭樣式，依連線類型決定
+    static final int HEAD_NONE = 0, HEAD_OPEN = 1, HEAD_HOLLOW = 2, HEAD_FILLED = 3;
+    static final int CONTROL_POINT_SIZE = 10;
     private static final int ARROW_SIZE = 14;
     private static final int SELECTION_THRESHOLD = 5;
+    private static final int CONTROL_POINT_RADIUS = 10;
+    private static final long CONTROL_POINT_RADIUS_SQ = (long) CONTROL_POINT_RADIUS * CONTROL_POINT_RADIUS;
+    private static final int GRID_CELL_SIZE = 128;
+    // 重繪區域需額外包含選取框、控制點與箭頭
+    private static final int DAMAGE_MARGIN = ARROW_SIZE + CONTROL_POINT_SIZE;
+    private static final double MIN_ZOOM = 0.05, MAX_ZOOM = 8.0, ZOOM_STEP = 1.25;
+    private static final int SCROLL_STEP = 40;
+    private static final long DEFAULT_HISTORY_BUDGET = 64L << 20;
+    // 拖曳時兩次畫面更新的最短間隔（約 60 Hz）
+    private static final int FRAME_INTERVAL_MS = 16;
+    // 靜態圖層中的物件達到此數量時改以 TileRenderer 分塊平行繪製；匯出影像時每條橫帶的像素數上限（16 MB）
+    private static final int PARALLEL_MIN_OBJECTS = 2000;
+    private static final int MAX_BAND_PIXELS = 1 << 22;
+    private static final Comparator<Shape> Z_ORDER = Comparator.comparingLong(shape -> shape.z);
+    // 連線依編號繪製，links 即依編號排列
+    private static final Comparator<Link> LINK_ORDER = Comparator.comparingInt(link -> link.id);
     
     // 模式和形狀相關
     private String currentMode = "select";
-    private final ArrayList<Object[]> shapes = new ArrayList<>();
-    private final ArrayList<Object[]> links = new ArrayList<>();
-    public ArrayList<Object[]> selectedShapes = new ArrayList<>();
+    private final ZOrder shapes = new ZOrder();
+    private final ArrayList<Link> links = new ArrayList<>();
+    private final SelectionModel selection = new SelectionModel();
+    
+    // 最上層形狀的空間索引，用於點擊測試
+    private final SpatialGrid<Shape> shapeIndex = new SpatialGrid<>(GRID_CELL_SIZE);
+    private final ArrayList<Shape> hitCandidates = new ArrayList<>();
+    // 連線兩端點所圍範圍的索引，繪製時只取出可見範圍附近的連線
+    private final SpatialGrid<Link> linkIndex = new SpatialGrid<>(GRID_CELL_SIZE);
+    // 端點移動後尚未更新到 linkIndex 的連線；拖動時每一格只做標記，查詢前才一併更新
+    private final ArrayList<Link> staleLinks = new ArrayList<>();
+    // 標籤可能超出形狀的最上層形狀；標籤或最上層形狀改變後設為 null，下次繪製時重新找出
+    private ArrayList<Shape> overhangingLabels = null;
+    
+    // 下一個新形狀與連線的編號，以及記錄所有修改的編輯日誌（未啟用時為 null）
+    private int nextShapeId = 0, nextLinkId = 0;
+    private EditJournal journal = null;
+    
+    // 堆疊順序：shapes 依 z 由小到大排列，加入或移到最上層的形狀取得比 topZ 更大的值，
+    // 移到最下層的取得比 bottomZ 更小的值；兩者只往外擴，復原時重新出現的形狀不會與現有形狀同值
+    private long topZ = 0, bottomZ = 0;
+    
+    // 子形狀快取的畫布座標在 composite 移動或組合關係改變時遞增此值而失效
+    private int transformEpoch = 0;
+    
+    // 復原紀錄：自上次提交後被修改的形狀與連線，在一次操作結束時一併提交
+    private final EditHistory history = new EditHistory(DEFAULT_HISTORY_BUDGET);
+    private final Set<Shape> touchedShapes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Link> touchedLinks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean hasUncommittedEdit = false;
     
     // 連線和拖動相關
-    private Object[] startShape = null, endShape = null, draggingObject = null;
+    private Shape startShape = null, endShape = null, draggingObject = null;
     private int[] startControlPoint = null, currentMousePos = null;
     private boolean isDraggingLink = false, isDraggingSelection = false, isDraggingObject = false;
     private int dragStartX = -1, dragStartY = -1, dragCurrentX = -1, dragCurrentY = -1;
     private int lastDragX = -1, lastDragY = -1;
+    private boolean hasDraggedObject = false;
+    // 拖動中的最上層形狀（依 z 由下到上）與端點落在它們上的連線；draggingObject 是按下的那一個
+    private final ArrayList<Shape> draggingShapes = new ArrayList<>();
+    private final Set<Shape> draggingSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ArrayList<Link> draggingLinks = new ArrayList<>();
+    // 框選中的預覽：選取框內未被覆蓋的形狀，放開滑鼠時成為選取；previewArea 是上一次更新時的選取框
+    private final Set<Shape> selectionPreview = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Rectangle previewArea = new Rectangle();
+    private final ArrayList<Shape> previewChanged = new ArrayList<>();
+    // translateShapes 走訪連線時的暫存，避免兩端都在組內的連線被處理兩次
+    private final Set<Link> visitedLinks = Collections.newSetFromMap(new IdentityHashMap<>());
+    // 拖曳連線時，放開滑鼠會接上的控制點（磁吸提示）
+    private boolean hasMagnet = false;
+    private int magnetX, magnetY;
+    
+    // 拖曳的合併：距上一次畫面更新不到一個間隔時只記下最新的滑鼠位置，
+    // 由 frameTimer 在間隔結束時一次套用累積的位移並重繪
+    private boolean hasPendingDrag = false;
+    private int pendingDragX, pendingDragY;
+    private final Timer frameTimer = new Timer(FRAME_INTERVAL_MS, e -> renderPendingDrag());
+    
+    // 靜態圖層：未在編輯中的形狀、連線與標籤只在變動時才重新繪製
+    private BufferedImage staticLayer = null;
+    private boolean staticLayerValid = false;
+    private Set<Shape> staticLayerExcluded = Collections.emptySet();
+    private double staticLayerScale = 1.0;
+    
+    // 本次事件累積的需重繪區域（畫布座標）
+    private final Rectangle dirtyRegion = new Rectangle();
+    private boolean hasDirtyRegion = false;
+    
+    // 視窗：螢幕座標 = 畫布座標 * viewScale + (viewX, viewY)
+    private double viewScale = 1.0, viewX = 0, viewY = 0;
+    private final AffineTransform viewTransform = new AffineTransform();
+    private boolean isPanning = false;
+    private int panLastX, panLastY;
+    
+    // 效能量測與畫布上的統計面板；面板顯示時定期重繪以更新數字
+    private static final int OVERLAY_REFRESH_MS = 500;
+    private final FrameMonitor monitor = new FrameMonitor();
+    private final Timer overlayTimer = new Timer(OVERLAY_REFRESH_MS, e -> repaint(monitor.getOverlayBounds()));
 
     public CanvasPanel() {
         setBackground(Color.WHITE);
+        frameTimer.setRepeats(false);
         setupMouseListeners();
     }
     
     private void setupMouseListeners() {
+        // 每個事件的處理時間，以及到畫面更新為止的延遲都會記錄到 monitor
         MouseAdapter adapter = new MouseAdapter() {
             @Override
-            public void mousePressed(MouseEvent e) { handleMousePressed(e); }
+            public void mousePressed(MouseEvent e) {
+                monitor.inputStarted();
+                monitor.start(FrameMonitor.MOUSE_PRESSED);
+                handleMousePressed(e);
+                monitor.stop(FrameMonitor.MOUSE_PRESSED);
+                monitor.inputFinished();
+            }
             @Override
-            public void mouseReleased(MouseEvent e) { handleMouseReleased(e); }
+            public void mouseReleased(MouseEvent e) {
+                monitor.inputStarted();
+                monitor.start(FrameMonitor.MOUSE_RELEASED);
+                handleMouseReleased(e);
+                monitor.stop(FrameMonitor.MOUSE_RELEASED);
+                monitor.inputFinished();
+            }
             @Override
             public void mouseMoved(MouseEvent e) {
-                currentMousePos = new int[]{e.getX(), e.getY()};
-                repaint();
+                // 只有拖曳連線時才會畫出滑鼠位置，移動本身不需重繪
+                setMousePos(toWorldX(e.getX()), toWorldY(e.getY()));
+            }
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                monitor.inputStarted();
+                monitor.start(FrameMonitor.MOUSE_DRAGGED);
+                handleMouseDragged(e);
+                monitor.stop(FrameMonitor.MOUSE_DRAGGED);
+                monitor.inputFinished();
             }
             @Override
-            public void mouseDragged(MouseEvent e) { handleMouseDragged(e); }
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                monitor.inputStarted();
+                handleMouseWheel(e);
+                monitor.inputFinished();
+            }
         };
         addMouseListener(adapter);
         addMouseMotionListener(adapter);
+        addMouseWheelListener(adapter);
+    }
+    
+    // 視窗相關方法：中鍵或右鍵拖曳平移，滾輪捲動，Ctrl + 滾輪縮放
+    private void handleMouseWheel(MouseWheelEvent e) {
+        if (e.isControlDown()) {
+            double factor = Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+            zoomAt(factor, e.getX(), e.getY());
+        } else if (e.isShiftDown()) {
+            panBy(-e.getPreciseWheelRotation() * SCROLL_STEP, 0);
+        } else {
+            panBy(0, -e.getPreciseWheelRotation() * SCROLL_STEP);
+        }
+    }
+    
+    public void zoomIn() {
+        zoomAt(ZOOM_STEP, getWidth() / 2, getHeight() / 2);
+    }
+    
+    public void zoomOut() {
+        zoomAt(1 / ZOOM_STEP, getWidth() / 2, getHeight() / 2);
+    }
+    
+    public void resetView() {
+        setView(1.0, 0, 0);
+    }
+    
+    // 以螢幕上的 (screenX, screenY) 為中心縮放，該點下的畫布位置保持不動
+    private void zoomAt(double factor, int screenX, int screenY) {
+        double scale = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, viewScale * factor));
+        double worldX = (screenX - viewX) / viewScale;
+        double worldY = (screenY - viewY) / viewScale;
+        setView(scale, screenX - worldX * scale, screenY - worldY * scale);
+    }
+    
+    private void panBy(double dx, double dy) {
+        setView(viewScale, viewX + dx, viewY + dy);
+    }
+    
+    private void setView(double scale, double x, double y) {
+        viewScale = scale;
+        viewX = x;
+        viewY = y;
+        viewTransform.setTransform(scale, 0, 0, scale, x, y);
+        invalidateStaticLayer();
+        monitor.frameRequested();
+        repaint();
+    }
+    
+    private int toWorldX(int screenX) {
+        return (int) Math.floor((screenX - viewX) / viewScale);
+    }
+    
+    private int toWorldY(int screenY) {
+        return (int) Math.floor((screenY - viewY) / viewScale);
+    }
+    
+    // 目前可見的畫布範圍
+    private Rectangle getVisibleWorldBounds() {
+        int x1 = toWorldX(0), y1 = toWorldY(0);
+        int x2 = toWorldX(getWidth()) + 1, y2 = toWorldY(getHeight()) + 1;
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+    
+    private static boolean isVisible(Rectangle visible, int x, int y, int width, int height) {
+        if (visible == null) return true;
+        return x - DAMAGE_MARGIN < visible.x + visible.width && visible.x < x + width + DAMAGE_MARGIN
+            && y - DAMAGE_MARGIN < visible.y + visible.height && visible.y < y + height + DAMAGE_MARGIN;
     }
     
     // 處理滑鼠事件
     private void handleMousePressed(MouseEvent e) {
-        int x = e.getX(), y = e.getY();
+        if (e.getButton() == MouseEvent.BUTTON2 || e.getButton() == MouseEvent.BUTTON3) {
+            isPanning = true;
+            panLastX = e.getX();
+            panLastY = e.getY();
+            return;
+        }
+        int x = toWorldX(e.getX()), y = toWorldY(e.getY());
+        applyPendingDrag();
         
         if (currentMode.equals("rect") || currentMode.equals("oval")) {
             // 創建新形狀
-            int width = currentMode.equals("oval") ? 120 : 90;
-            int height = currentMode.equals("oval") ? 80 : 120;
-            shapes.add(new Object[]{currentMode, x, y, width, height, null});
+            Shape shape = addShape(currentMode, x, y);
+            damageShape(shape);
+            // 新形狀可能覆蓋選取中的形狀，使其控制點不再顯示
+            damageSelection();
         } else if (currentMode.equals("select")) {
-            Object[] clickedShape = findShapeAt(x, y);
+            Shape clickedShape = findShapeAt(x, y);
             
             if (clickedShape != null && !isShapeCoveredByOthers(clickedShape)) {
-                // 選擇並準備拖動形狀
-                selectedShapes.clear();
-                selectedShapes.add(clickedShape);
-                shapes.remove(clickedShape);
-                shapes.add(clickedShape);
+                // 按在選取中的形狀上時整組一起拖動，否則改為只選取並拖動這個形狀
+                damageSelection();
+                if (!selection.contains(clickedShape)) {
+                    selection.set(clickedShape);
+                }
+                beginDraggingShapes(selection);
                 
                 isDraggingObject = true;
                 draggingObject = clickedShape;
@@ -79,69 +276,209 @@ class CanvasPanel extends JPanel {
                 isDraggingSelection = true;
                 dragStartX = dragCurrentX = x;
                 dragStartY = dragCurrentY = y;
+                selectionPreview.clear();
+                previewArea.setBounds(x, y, 0, 0);
+                damage(x, y, x, y);
             }
         } else if (isLinkMode()) {
             // 開始拖曳連線
             startDraggingLink(x, y);
         }
-        repaint();
+        commitEdit();
+        flushDamage();
     }
     
     private void handleMouseReleased(MouseEvent e) {
-        int x = e.getX(), y = e.getY();
+        if (isPanning) {
+            isPanning = false;
+            return;
+        }
+        int x = toWorldX(e.getX()), y = toWorldY(e.getY());
+        // 放開前先套用尚未處理的拖曳，結束位置才會是最後一個滑鼠位置
+        applyPendingDrag();
         
         if (currentMode.equals("select")) {
             if (isDraggingSelection) {
-                isDraggingSelection = false;
+                damage(dragStartX, dragStartY, dragCurrentX, dragCurrentY);
                 
-                int x1 = Math.min(dragStartX, dragCurrentX);
-                int y1 = Math.min(dragStartY, dragCurrentY);
-                int x2 = Math.max(dragStartX, dragCurrentX);
-                int y2 = Math.max(dragStartY, dragCurrentY);
-                
-                if (x2 - x1 > SELECTION_THRESHOLD && y2 - y1 > SELECTION_THRESHOLD) {
-                    selectShapesInArea(new Rectangle(x1, y1, x2-x1, y2-y1));
+                // 預覽已是拖曳中顯示的選取，直接採用；預覽為空或選取框太小時維持原本的選取
+                if (isPreviewingSelection()) {
+                    ArrayList<Shape> selected = new ArrayList<>(selectionPreview);
+                    selected.sort(Z_ORDER);
+                    selection.setAll(selected);
                 }
+                isDraggingSelection = false;
+                selectionPreview.clear();
                 
                 dragStartX = dragStartY = dragCurrentX = dragCurrentY = -1;
             } else if (isDraggingObject) {
+                // 拖動結束後形狀回到靜態圖層，其上方的連線與標籤順序隨之恢復
+                if (hasDraggedObject) {
+                    damageDraggingShapes();
+                } else if (draggingShapes.size() > 1) {
+                    // 在選取的一組形狀上只點一下沒有拖動：改為只選取點到的形狀
+                    damageSelection();
+                    selection.set(draggingObject);
+                }
                 isDraggingObject = false;
+                hasDraggedObject = false;
                 draggingObject = null;
+                clearDraggingShapes();
                 lastDragX = lastDragY = -1;
             }
         } else if (isLinkMode() && isDraggingLink) {
             // 嘗試完成連線或取消
             if (startControlPoint != null) {
+                damageDraggingLink();
                 completeDraggingLink(x, y);
             }
             // 無論是否成功連線，都重置拖曳狀態
+            clearMagnet();
             isDraggingLink = false;
             startControlPoint = null;
             startShape = null;
         }
-        repaint();
+        commitEdit();
+        flushDamage();
     }
     
     private void handleMouseDragged(MouseEvent e) {
-        int x = e.getX(), y = e.getY();
+        if (isPanning) {
+            panBy(e.getX() - panLastX, e.getY() - panLastY);
+            panLastX = e.getX();
+            panLastY = e.getY();
+            return;
+        }
+        pendingDragX = toWorldX(e.getX());
+        pendingDragY = toWorldY(e.getY());
+        hasPendingDrag = true;
+        
+        // 距上一次更新已超過一個間隔時立即處理，否則留給 frameTimer
+        if (frameTimer.isRunning()) {
+            monitor.inputDeferred();
+        } else {
+            renderPendingDrag();
+        }
+    }
+    
+    private void renderPendingDrag() {
+        if (!hasPendingDrag) return;
+        applyPendingDrag();
+        flushDamage();
+        frameTimer.restart();
+    }
+    
+    // 以累積的最新滑鼠位置更新拖曳狀態；位移是相對於上一次套用的位置，中間合併掉的事件不影響結果
+    private void applyPendingDrag() {
+        if (!hasPendingDrag) return;
+        hasPendingDrag = false;
+        int x = pendingDragX, y = pendingDragY;
         
         if (isDraggingLink) {
-            currentMousePos = new int[]{x, y};
+            damageDraggingLink();
+            setMousePos(x, y);
+            damageDraggingLink();
+            updateMagnet(x, y);
         } else if (currentMode.equals("select")) {
             if (isDraggingSelection) {
+                damage(dragStartX, dragStartY, dragCurrentX, dragCurrentY);
                 dragCurrentX = x;
                 dragCurrentY = y;
-            } else if (isDraggingObject && draggingObject != null) {
+                damage(dragStartX, dragStartY, dragCurrentX, dragCurrentY);
+                updateSelectionPreview(new Rectangle(Math.min(dragStartX, x), Math.min(dragStartY, y),
+                    Math.abs(x - dragStartX), Math.abs(y - dragStartY)));
+            } else if (isDraggingObject && !draggingShapes.isEmpty()) {
                 int deltaX = x - lastDragX;
                 int deltaY = y - lastDragY;
                 
-                moveShape(draggingObject, deltaX, deltaY);
-                updateConnectedLinks();
+                // 整組形狀一次平移，移動前後的範圍併入同一個重繪區域
+                damageDraggingShapes();
+                hasDraggedObject = true;
+                translateShapes(draggingSet, deltaX, deltaY);
+                damageDraggingShapes();
                 lastDragX = x;
                 lastDragY = y;
             }
         }
-        repaint();
+    }
+    
+    private void setMousePos(int x, int y) {
+        if (currentMousePos == null) {
+            currentMousePos = new int[2];
+        }
+        currentMousePos[0] = x;
+        currentMousePos[1] = y;
+    }
+    
+    // 重繪區域相關方法：(x1, y1) 與 (x2, y2) 為任意兩個對角
+    private void damage(int x1, int y1, int x2, int y2) {
+        int minX = Math.min(x1, x2) - DAMAGE_MARGIN, minY = Math.min(y1, y2) - DAMAGE_MARGIN;
+        int maxX = Math.max(x1, x2) + DAMAGE_MARGIN, maxY = Math.max(y1, y2) + DAMAGE_MARGIN;
+        
+        if (hasDirtyRegion) {
+            dirtyRegion.add(minX, minY);
+            dirtyRegion.add(maxX, maxY);
+        } else {
+            dirtyRegion.setBounds(minX, minY, maxX - minX, maxY - minY);
+            hasDirtyRegion = true;
+        }
+    }
+    
+    private void damageShape(Shape shape) {
+        damage(shape.x, shape.y, shape.x + shape.width, shape.y + shape.height);
+        
+        // 過長的標籤文字會超出形狀左右兩側
+        if (shape.label != null) {
+            int textWidth = LabelLayout.of(shape.label).measuredTextWidth();
+            if (textWidth > shape.width) {
+                int left = shape.x + (shape.width - textWidth) / 2;
+                damage(left, shape.y, left + textWidth, shape.y + shape.height);
+            }
+        }
+    }
+    
+    private void damageDraggingShapes() {
+        for (Shape shape : draggingShapes) {
+            damageShape(shape);
+        }
+        for (Link link : draggingLinks) {
+            damage(link.startX, link.startY, link.endX, link.endY);
+        }
+    }
+    
+    private void damageSelection() {
+        for (Shape shape : selection) {
+            damageShape(shape);
+        }
+    }
+    
+    // 畫面上顯示的選取：框選中且放開時會成為選取的預覽，否則為目前的選取
+    private boolean isPreviewingSelection() {
+        return isDraggingSelection && previewArea.width > SELECTION_THRESHOLD && previewArea.height > SELECTION_THRESHOLD
+            && !selectionPreview.isEmpty();
+    }
+    
+    private Iterable<Shape> displayedSelection() {
+        return isPreviewingSelection() ? selectionPreview : selection;
+    }
+    
+    private void damageDraggingLink() {
+        if (isDraggingLink && startControlPoint != null && currentMousePos != null) {
+            damage(startControlPoint[0], startControlPoint[1], currentMousePos[0], currentMousePos[1]);
+        }
+    }
+    
+    private void flushDamage() {
+        if (!hasDirtyRegion) return;
+        
+        // 轉換為螢幕座標，並向外取整避免縮放後的邊緣殘影
+        int x1 = (int) Math.floor(dirtyRegion.x * viewScale + viewX) - 1;
+        int y1 = (int) Math.floor(dirtyRegion.y * viewScale + viewY) - 1;
+        int x2 = (int) Math.ceil((dirtyRegion.x + dirtyRegion.width) * viewScale + viewX) + 1;
+        int y2 = (int) Math.ceil((dirtyRegion.y + dirtyRegion.height) * viewScale + viewY) + 1;
+        monitor.frameRequested();
+        repaint(x1, y1, x2 - x1, y2 - y1);
+        hasDirtyRegion = false;
     }
     
     // 連線相關方法
@@ -152,12 +489,10 @@ class CanvasPanel extends JPanel {
         isDraggingLink = false;
         
         // 檢查所有選中的物件，不僅是最上層的
-        for (Object[] selectedShape : selectedShapes) {
+        for (Shape selectedShape : selection) {
             // 確保物件沒有被其他物件覆蓋
             if (!isShapeCoveredByOthers(selectedShape)) {
-                if (isNearControlPoint(x, y, (int)selectedShape[1], 
-                        (int)selectedShape[2], (int)selectedShape[3], 
-                        (int)selectedShape[4], (String)selectedShape[0])) {
+                if (isNearControlPoint(x, y, selectedShape, selectedShape.x, selectedShape.y)) {
                     startShape = selectedShape;
                     startControlPoint = findControlPointAt(x, y);
                     if (startControlPoint != null) {
@@ -169,16 +504,37 @@ class CanvasPanel extends JPanel {
         }
     }
     
+    // 以放開滑鼠時相同的規則找出會接上的控制點，只在位置改變時重繪
+    private void updateMagnet(int x, int y) {
+        int[] point = findControlPointAt(x, y);
+        Shape target = point != null ? findShapeAtControlPoint(x, y) : null;
+        boolean show = target != null && target != startShape;
+        if (show == hasMagnet && (!show || (point[0] == magnetX && point[1] == magnetY))) return;
+        
+        clearMagnet();
+        if (show) {
+            hasMagnet = true;
+            magnetX = point[0];
+            magnetY = point[1];
+            damage(magnetX, magnetY, magnetX, magnetY);
+        }
+    }
+    
+    private void clearMagnet() {
+        if (!hasMagnet) return;
+        hasMagnet = false;
+        damage(magnetX, magnetY, magnetX, magnetY);
+    }
+    
     private void completeDraggingLink(int x, int y) {
         int[] endControlPoint = findControlPointAt(x, y);
         if (endControlPoint != null) {
             endShape = findShapeAtControlPoint(x, y);
             if (endShape != null && endShape != startShape) {
-                links.add(new Object[]{
-                    currentMode, startShape, endShape,
+                Link link = addLink(currentMode, startShape, endShape,
                     startControlPoint[0], startControlPoint[1],
-                    endControlPoint[0], endControlPoint[1]
-                });
+                    endControlPoint[0], endControlPoint[1]);
+                damage(link.startX, link.startY, link.endX, link.endY);
             }
         }
         
@@ -189,320 +545,878 @@ class CanvasPanel extends JPanel {
         endShape = null;
     }
     
-    // 形狀查找和檢查方法
-    private Object[] findShapeAt(int x, int y) {
-        List<Object[]> shapesAtPoint = new ArrayList<>();
+    // 建立模型的方法，供滑鼠操作與程式化產生圖表（例如效能測試）共用
+    Shape addShape(String type, int x, int y) {
+        return addShape(type, x, y, nextShapeId, topZ + 1);
+    }
+    
+    // 以指定的編號與堆疊順序建立形狀，重播編輯日誌時用來還原原本的值；z 需大於所有現有形狀
+    @Override
+    public Shape addShape(String type, int x, int y, int id, long z) {
+        Shape shape = Shape.create(type, x, y);
+        shape.id = id;
+        shape.z = z;
+        nextShapeId = Math.max(nextShapeId, id + 1);
+        topZ = Math.max(topZ, z);
+        shapes.add(shape);
+        shapeIndex.insert(shape, x, y, shape.width, shape.height);
+        addCoverage(shape);
+        invalidateStaticLayer();
+        touch(shape);
+        if (journal != null) journal.recordCreate(shape);
+        return shape;
+    }
+    
+    Link addLink(String type, Shape start, Shape end, int startX, int startY, int endX, int endY) {
+        return addLink(type, start, end, startX, startY, endX, endY, nextLinkId);
+    }
+    
+    @Override
+    public Link addLink(String type, Shape start, Shape end, int startX, int startY, int endX, int endY, int id) {
+        Link link = new Link(type, start, end, startX, startY, endX, endY);
+        link.id = id;
+        nextLinkId = Math.max(nextLinkId, id + 1);
+        links.add(link);
+        link.attach();
+        indexLink(link);
+        invalidateStaticLayer();
+        touch(link);
+        if (journal != null) journal.recordLink(link);
+        return link;
+    }
+    
+    // 以載入的圖表取代目前內容；topShapes 依 z 由小到大排列，子形狀的 parent 需已設定
+    @Override
+    public void setDiagram(List<Shape> topShapes, List<Link> newLinks) {
+        resetDragStates();
+        selection.clear();
+        shapes.clear();
+        links.clear();
+        shapeIndex.clear();
+        linkIndex.clear();
+        staleLinks.clear();
+        overhangingLabels = null;
+        nextShapeId = nextLinkId = 0;
+        topZ = bottomZ = 0;
+        transformEpoch++;
+        
+        for (Shape shape : topShapes) {
+            updateNextShapeId(shape);
+            topZ = Math.max(topZ, shape.z);
+            bottomZ = Math.min(bottomZ, shape.z);
+            shapes.add(shape);
+            shapeIndex.insert(shape, shape.x, shape.y, shape.width, shape.height);
+            addCoverage(shape);
+        }
+        for (Link link : newLinks) {
+            nextLinkId = Math.max(nextLinkId, link.id + 1);
+            links.add(link);
+            link.attach();
+            indexLink(link);
+        }
         
-        for (Object[] shape : shapes) {
-            if (isPointInShape(shape, x, y)) {
-                shapesAtPoint.add(shape);
+        resetHistory();
+        invalidateStaticLayer();
+        repaint();
+    }
+    
+    // 清空圖表，復原紀錄也從空白開始
+    void clearDiagram() {
+        setDiagram(Collections.<Shape>emptyList(), Collections.<Link>emptyList());
+    }
+    
+    private void updateNextShapeId(Shape shape) {
+        nextShapeId = Math.max(nextShapeId, shape.id + 1);
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                updateNextShapeId(child);
             }
         }
-        
-        if (shapesAtPoint.isEmpty()) return null;
-        if (shapesAtPoint.size() == 1) return shapesAtPoint.get(0);
-        
-        // 返回最上層的形狀
-        return shapesAtPoint.stream()
-            .max((s1, s2) -> Integer.compare(shapes.indexOf(s1), shapes.indexOf(s2)))
-            .orElse(null);
     }
     
-    private boolean isShapeCoveredByOthers(Object[] shape) {
-        int shapeIndex = shapes.indexOf(shape);
-        if (shapeIndex == -1 || shapeIndex == shapes.size() - 1) return false;
-        
-        Rectangle shapeBounds = getBounds(shape);
+    void setJournal(EditJournal journal) {
+        this.journal = journal;
+    }
+    
+    // 選取中的最上層形狀；編輯器以它查詢選取並接收選取改變的通知
+    SelectionModel getSelection() {
+        return selection;
+    }
+    
+    // 最上層形狀依 z 由下到上的快照
+    @Override
+    public List<Shape> getShapes() {
+        return shapes.toList();
+    }
+    
+    @Override
+    public List<Link> getLinks() {
+        return Collections.unmodifiableList(links);
+    }
+    
+    // 形狀查找和檢查方法
+    Shape findShapeAt(int x, int y) {
+        // 只檢查索引中與該點同一格子的形狀
+        hitCandidates.clear();
+        shapeIndex.query(x, y, hitCandidates);
+        
+        // 返回包含該點的最上層形狀
+        Shape found = null;
+        for (Shape shape : hitCandidates) {
+            if ((found == null || ZOrder.isAbove(shape, found)) && isPointInShape(shape, x, y)) {
+                found = shape;
+            }
+        }
+        hitCandidates.clear();
         
-        // 檢查是否被更高層級的形狀覆蓋
-        for (int i = shapeIndex + 1; i < shapes.size(); i++) {
-            if (shapeBounds.intersects(getBounds(shapes.get(i)))) {
-                return true;
+        return found;
+    }
+    
+    private boolean isShapeCoveredByOthers(Shape shape) {
+        // 子形狀的計數恆為 0，視為未被覆蓋
+        return shape.coverCount > 0;
+    }
+    
+    // 將最上層形狀加入覆蓋計數：與它相交的形狀中，z 較小的被它覆蓋，z 較大的覆蓋它
+    private void addCoverage(Shape shape) {
+        shape.coverCount = 0;
+        hitCandidates.clear();
+        shapeIndex.query(shape.x, shape.y, shape.width, shape.height, hitCandidates);
+        for (Shape other : hitCandidates) {
+            if (other == shape || !boundsIntersect(shape, other)) continue;
+            if (ZOrder.isAbove(shape, other)) {
+                other.coverCount++;
+            } else {
+                shape.coverCount++;
             }
         }
-        return false;
+        hitCandidates.clear();
     }
     
-    private Rectangle getBounds(Object[] shape) {
-        return new Rectangle((int)shape[1], (int)shape[2], (int)shape[3], (int)shape[4]);
+    // 從覆蓋計數中移除形狀
+    private void removeCoverage(Shape shape) {
+        hitCandidates.clear();
+        shapeIndex.query(shape.x, shape.y, shape.width, shape.height, hitCandidates);
+        for (Shape other : hitCandidates) {
+            if (other != shape && ZOrder.isAbove(shape, other) && boundsIntersect(shape, other)) {
+                other.coverCount--;
+            }
+        }
+        hitCandidates.clear();
+        shape.coverCount = 0;
     }
     
-    private boolean isPointInShape(Object[] shape, int x, int y) {
-        String type = (String) shape[0];
-        int sx = (int) shape[1], sy = (int) shape[2];
-        int sw = (int) shape[3], sh = (int) shape[4];
+    // 將一組最上層形狀移出索引並扣除它們對組外形狀的覆蓋；組內彼此的計數之後會重新計算
+    private void removeCoverage(Set<Shape> group) {
+        for (Shape shape : group) {
+            shapeIndex.query(shape.x, shape.y, shape.width, shape.height, hitCandidates);
+            for (Shape other : hitCandidates) {
+                if (ZOrder.isAbove(shape, other) && !group.contains(other) && boundsIntersect(shape, other)) {
+                    other.coverCount--;
+                }
+            }
+            hitCandidates.clear();
+        }
+        for (Shape shape : group) {
+            shape.coverCount = 0;
+            shapeIndex.remove(shape);
+        }
+    }
+    
+    // 將一組最上層形狀加入索引與覆蓋計數；組內的每一對只從較上層的一方計算一次
+    private void addCoverage(Set<Shape> group) {
+        for (Shape shape : group) {
+            shape.coverCount = 0;
+            shapeIndex.insert(shape, shape.x, shape.y, shape.width, shape.height);
+        }
+        for (Shape shape : group) {
+            shapeIndex.query(shape.x, shape.y, shape.width, shape.height, hitCandidates);
+            for (Shape other : hitCandidates) {
+                if (other == shape || !boundsIntersect(shape, other)) continue;
+                if (ZOrder.isAbove(shape, other)) {
+                    other.coverCount++;
+                } else if (!group.contains(other)) {
+                    shape.coverCount++;
+                }
+            }
+            hitCandidates.clear();
+        }
+    }
+    
+    // 與 Rectangle.intersects 相同的判斷，但不配置物件
+    private boolean boundsIntersect(Shape a, Shape b) {
+        if (a.width <= 0 || a.height <= 0 || b.width <= 0 || b.height <= 0) return false;
+        return a.x < b.x + b.width && b.x < a.x + a.width
+            && a.y < b.y + b.height && b.y < a.y + a.height;
+    }
+    
+    private boolean isPointInShape(Shape shape, int x, int y) {
+        return isPointInShape(shape, 0, 0, x, y);
+    }
+    
+    // originX, originY 為上層 composite 的畫布座標，最上層形狀為 (0, 0)
+    private boolean isPointInShape(Shape shape, int originX, int originY, int x, int y) {
+        String type = shape.type;
+        int sx = originX + shape.x, sy = originY + shape.y;
+        int sw = shape.width, sh = shape.height;
+        
+        // 每個形狀（含 composite）的邊界都包住其子孫，點在邊界外時整棵子樹都可略過
+        if (x < sx || x > sx + sw || y < sy || y > sy + sh) return false;
         
         if (type.equals("rect")) {
-            return x >= sx && x <= sx + sw && y >= sy && y <= sy + sh;
+            return true;
         } else if (type.equals("oval")) {
             double centerX = sx + sw / 2.0, centerY = sy + sh / 2.0;
             double a = sw / 2.0, b = sh / 2.0;
             double normalizedX = (x - centerX) / a;
             double normalizedY = (y - centerY) / b;
             return normalizedX * normalizedX + normalizedY * normalizedY <= 1.0;
-        } else if (type.equals("composite")) {
-            ArrayList<Object[]> children = (ArrayList<Object[]>) shape[5];
-            for (Object[] child : children) {
-                if (isPointInShape(child, x, y)) return true;
+        } else if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                if (isPointInShape(child, sx, sy, x, y)) return true;
             }
         }
         return false;
     }
     
+    // 把框選預覽更新為 area 內未被覆蓋的形狀。形狀是否完全在框內只可能因落在新舊選取框
+    // 差集中的部分而改變，因此只以範圍查詢取出差集各條帶上的形狀重新判斷，成本與框的變化量成正比
+    void updateSelectionPreview(Rectangle area) {
+        boolean wasPreviewing = isPreviewingSelection();
+        Rectangle common = previewArea.intersection(area);
+        hitCandidates.clear();
+        if (common.isEmpty()) {
+            // 新舊選取框不相交（例如越過起點）：舊的預覽全部重新判斷，新框內整個查詢
+            hitCandidates.addAll(selectionPreview);
+            queryShapes(area.x, area.y, area.width, area.height);
+        } else {
+            // 聯集扣掉交集：左右兩條帶涵蓋整個高度，上下兩條帶只在交集的寬度內
+            Rectangle union = previewArea.union(area);
+            int commonRight = common.x + common.width, commonBottom = common.y + common.height;
+            queryShapes(union.x, union.y, common.x - union.x, union.height);
+            queryShapes(commonRight, union.y, union.x + union.width - commonRight, union.height);
+            queryShapes(common.x, union.y, common.width, common.y - union.y);
+            queryShapes(common.x, commonBottom, common.width, union.y + union.height - commonBottom);
+        }
+        previewArea.setBounds(area);
+        
+        // 同一個形狀可能出現在多條帶中，只有第一次判斷會改變預覽
+        for (Shape shape : hitCandidates) {
+            boolean inside = area.contains(shape.x, shape.y, shape.width, shape.height) && !isShapeCoveredByOthers(shape);
+            if (inside ? selectionPreview.add(shape) : selectionPreview.remove(shape)) {
+                previewChanged.add(shape);
+            }
+        }
+        hitCandidates.clear();
+        
+        // 顯示的選取在原本的選取與預覽之間切換時兩者都需重繪，否則只重繪預覽有變化的形狀
+        boolean previewing = isPreviewingSelection();
+        if (previewing != wasPreviewing) {
+            damageSelection();
+            for (Shape shape : selectionPreview) {
+                damageShape(shape);
+            }
+        }
+        if (previewing || wasPreviewing) {
+            for (Shape shape : previewChanged) {
+                damageShape(shape);
+            }
+        }
+        previewChanged.clear();
+    }
+    
+    // 把邊界可能與矩形相交的最上層形狀加入 hitCandidates；空的矩形不查詢
+    private void queryShapes(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        shapeIndex.query(x, y, width, height, hitCandidates);
+    }
     
-    private void selectShapesInArea(Rectangle selectionArea) {
-        // 收集區域內未被覆蓋的形狀
-        ArrayList<Object[]> topShapes = new ArrayList<>();
+    void selectShapesInArea(Rectangle selectionArea) {
+        // 收集區域內未被覆蓋的形狀；區域涵蓋的格子比形狀還多時直接走訪全部形狀較快
+        ArrayList<Shape> topShapes = new ArrayList<>();
+        long cells = ((long) selectionArea.width / GRID_CELL_SIZE + 2) * ((long) selectionArea.height / GRID_CELL_SIZE + 2);
+        Iterable<Shape> candidates = shapes;
+        if (cells < shapes.size()) {
+            hitCandidates.clear();
+            shapeIndex.query(selectionArea.x, selectionArea.y, selectionArea.width, selectionArea.height, hitCandidates);
+            candidates = hitCandidates;
+        }
         
-        for (Object[] shape : shapes) {
-            Rectangle bounds = getBounds(shape);
-            if (selectionArea.contains(bounds) && !isShapeCoveredByOthers(shape)) {
+        for (Shape shape : candidates) {
+            if (selectionArea.contains(shape.x, shape.y, shape.width, shape.height) && !isShapeCoveredByOthers(shape)) {
                 topShapes.add(shape);
             }
         }
+        hitCandidates.clear();
+        // 選取順序維持由下到上
+        if (candidates != shapes) topShapes.sort(Z_ORDER);
         
         if (!topShapes.isEmpty()) {
-            selectedShapes.clear();
-            selectedShapes.addAll(topShapes);
+            selection.setAll(topShapes);
         }
     }
     
     // 控制點相關方法
-    private boolean isNearControlPoint(int x, int y, int shapeX, int shapeY, 
-                                      int shapeWidth, int shapeHeight, String shapeType) {
-        for (int[] p : getControlPoints(shapeX, shapeY, shapeWidth, shapeHeight, shapeType)) {
-            if (distance(p[0], p[1], x, y) <= 10) return true;
+    // (shapeX, shapeY) 為形狀左上角的畫布座標；控制點位移由形狀快取，比較時不需配置或開根號
+    private boolean isNearControlPoint(int x, int y, Shape shape, int shapeX, int shapeY) {
+        return findControlPointIndex(x, y, shape, shapeX, shapeY) >= 0;
+    }
+    
+    // 回傳半徑內第一個控制點在位移陣列中的索引，沒有時回傳 -1
+    private int findControlPointIndex(int x, int y, Shape shape, int shapeX, int shapeY) {
+        int[] offsets = shape.controlPointOffsets();
+        for (int i = 0; i < offsets.length; i += 2) {
+            if (distanceSq(shapeX + offsets[i], shapeY + offsets[i + 1], x, y) <= CONTROL_POINT_RADIUS_SQ) return i;
         }
-        return false;
+        return -1;
     }
     
-    private double distance(int x1, int y1, int x2, int y2) {
-        return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    private static long distanceSq(int x1, int y1, int x2, int y2) {
+        long dx = (long) x1 - x2, dy = (long) y1 - y2;
+        return dx * dx + dy * dy;
     }
     
     private int[] findControlPointAt(int x, int y) {
-        // 首先檢查所有選中形狀的控制點，而不只是最上層的
-        for (Object[] shape : selectedShapes) {
-            if (!isShapeCoveredByOthers(shape)) {
-                int[] point = findControlPointInShape(shape, x, y);
-                if (point != null) return point;
-            }
-        }
-        
-        // 再檢查其它未被覆蓋的形狀
-        for (int i = shapes.size() - 1; i >= 0; i--) {
-            Object[] shape = shapes.get(i);
-            if (!selectedShapes.contains(shape) && !isShapeCoveredByOthers(shape)) {
-                String type = (String) shape[0];
-                int sx = (int) shape[1], sy = (int) shape[2];
-                int sw = (int) shape[3], sh = (int) shape[4];
-                
-                if (isNearControlPoint(x, y, sx, sy, sw, sh, type)) {
-                    int[] point = findControlPointInShape(shape, x, y);
-                    if (point != null) return point;
-                }
+        // 控制點離所屬最上層形狀的邊界不超過半徑，只需檢查索引中該範圍內的形狀，
+        // 再由 composite 的邊界逐層排除不可能命中的子樹
+        hitCandidates.clear();
+        shapeIndex.query(x - CONTROL_POINT_RADIUS, y - CONTROL_POINT_RADIUS,
+                2 * CONTROL_POINT_RADIUS, 2 * CONTROL_POINT_RADIUS, hitCandidates);
+        
+        // 選中的形狀優先（可用到其子形狀的控制點），其次取最上層的未被覆蓋形狀
+        int[] found = null;
+        Shape foundShape = null;
+        boolean foundSelected = false;
+        for (Shape shape : hitCandidates) {
+            if (isShapeCoveredByOthers(shape)) continue;
+            boolean selected = selection.contains(shape);
+            boolean better = foundShape == null || (selected != foundSelected ? selected : ZOrder.isAbove(shape, foundShape));
+            if (!better) continue;
+            if (!selected && !isNearControlPoint(x, y, shape, shape.x, shape.y)) continue;
+            
+            int[] point = findControlPointInShape(shape, 0, 0, x, y);
+            if (point != null) {
+                found = point;
+                foundShape = shape;
+                foundSelected = selected;
             }
         }
+        hitCandidates.clear();
         
-        return null;
+        return found;
     }
     
-    private int[] findControlPointInShape(Object[] shape, int x, int y) {
-        if (shape[0].equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
-                int[] point = findControlPointInShape(child, x, y);
+    private int[] findControlPointInShape(Shape shape, int originX, int originY, int x, int y) {
+        int sx = originX + shape.x, sy = originY + shape.y;
+        // 控制點都在子孫的邊界上，離 composite 邊界超過半徑時不可能命中
+        if (x < sx - CONTROL_POINT_RADIUS || x > sx + shape.width + CONTROL_POINT_RADIUS
+                || y < sy - CONTROL_POINT_RADIUS || y > sy + shape.height + CONTROL_POINT_RADIUS) {
+            return null;
+        }
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                int[] point = findControlPointInShape(child, sx, sy, x, y);
                 if (point != null) return point;
             }
             return null;
         }
         
-        String type = (String) shape[0];
-        int sx = (int) shape[1], sy = (int) shape[2];
-        int sw = (int) shape[3], sh = (int) shape[4];
-        
-        for (int[] p : getControlPoints(sx, sy, sw, sh, type)) {
-            if (distance(p[0], p[1], x, y) <= 10) return p;
-        }
-        return null;
+        // 只有命中時才配置回傳的座標
+        int index = findControlPointIndex(x, y, shape, sx, sy);
+        if (index < 0) return null;
+        int[] offsets = shape.controlPointOffsets();
+        return new int[]{sx + offsets[index], sy + offsets[index + 1]};
     }
     
-    private Object[] findShapeAtControlPoint(int x, int y) {
-        
-        for (int i = shapes.size() - 1; i >= 0; i--) {
-            Object[] shape = shapes.get(i);
-            String type = (String) shape[0];
-            int sx = (int) shape[1], sy = (int) shape[2];
-            int sw = (int) shape[3], sh = (int) shape[4];
-            
-            if (isNearControlPoint(x, y, sx, sy, sw, sh, type) && !isShapeCoveredByOthers(shape)) {
-                return shape;  // 返回第一個找到的未被覆蓋的形狀
+    private Shape findShapeAtControlPoint(int x, int y) {
+        // 控制點可能落在邊界外 CONTROL_POINT_RADIUS 以內，因此以該範圍查詢索引
+        hitCandidates.clear();
+        shapeIndex.query(x - CONTROL_POINT_RADIUS, y - CONTROL_POINT_RADIUS,
+                2 * CONTROL_POINT_RADIUS, 2 * CONTROL_POINT_RADIUS, hitCandidates);
+        
+        Shape found = null;
+        for (Shape shape : hitCandidates) {
+            // 返回最上層的未被覆蓋的形狀
+            if ((found == null || ZOrder.isAbove(shape, found)) && !isShapeCoveredByOthers(shape)
+                    && isNearControlPoint(x, y, shape, shape.x, shape.y)) {
+                found = shape;
             }
         }
+        hitCandidates.clear();
         
-        return null;
+        return found;
     }
     
-    private int[][] getControlPoints(int x, int y, int w, int h, String shapeType) {
-        if (shapeType.equals("oval")) {
-            return new int[][]{
-                {x + w / 2, y},    // 上
-                {x + w / 2, y + h},// 下
-                {x, y + h / 2},    // 左
-                {x + w, y + h / 2} // 右
-            };
-        } else {
-            return new int[][]{
-                {x, y}, {x + w, y}, {x, y + h}, {x + w, y + h},      // 四角
-                {x + w / 2, y}, {x + w / 2, y + h}, {x, y + h / 2}, {x + w, y + h / 2} // 中點
-            };
+    // 移動和更新相關方法
+    // 平移最上層的形狀；形狀已在最上層，移動前後只需更新其下方鄰居的覆蓋計數
+    @Override
+    public void translateShape(Shape shape, int deltaX, int deltaY) {
+        removeCoverage(shape);
+        moveShape(shape, deltaX, deltaY);
+        addCoverage(shape);
+        updateConnectedLinks(shape, deltaX, deltaY);
+        // 拖動中的形狀本來就不在靜態圖層中
+        if (!staticLayerExcluded.contains(shape)) invalidateStaticLayer();
+        touch(shape);
+        for (Link link : shape.links) {
+            touch(link);
         }
+        if (journal != null) journal.recordMove(shape, deltaX, deltaY);
     }
     
-    // 移動和更新相關方法
-    private void moveShape(Object[] shape, int deltaX, int deltaY) {
-        shape[1] = (int)shape[1] + deltaX;
-        shape[2] = (int)shape[2] + deltaY;
+    // 一起平移一組最上層形狀：覆蓋計數整組移出後再加回，連線只走訪一次，
+    // 每個端點依它所屬的最上層形狀是否在組內決定是否更新
+    void translateShapes(Set<Shape> group, int deltaX, int deltaY) {
+        if (group.size() == 1) {
+            translateShape(group.iterator().next(), deltaX, deltaY);
+            return;
+        }
         
-        if (shape[0].equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
-                moveShapeRecursively(child, deltaX, deltaY);
+        removeCoverage(group);
+        for (Shape shape : group) {
+            // 已移出索引，addCoverage 會以新位置重新加入
+            shape.x += deltaX;
+            shape.y += deltaY;
+        }
+        transformEpoch++;
+        addCoverage(group);
+        
+        monitor.start(FrameMonitor.UPDATE_LINKS);
+        for (Shape shape : group) {
+            for (Link link : shape.links) {
+                if (!visitedLinks.add(link)) continue;
+                if (group.contains(link.start.root())) {
+                    updateLinkControlPoint(link, link.start, true, deltaX, deltaY);
+                }
+                if (group.contains(link.end.root())) {
+                    updateLinkControlPoint(link, link.end, false, deltaX, deltaY);
+                }
+                touch(link);
             }
         }
-    }
-    
-    private void moveShapeRecursively(Object[] shape, int deltaX, int deltaY) {
-        shape[1] = (int)shape[1] + deltaX;
-        shape[2] = (int)shape[2] + deltaY;
+        visitedLinks.clear();
+        monitor.stop(FrameMonitor.UPDATE_LINKS);
         
-        if (shape[0].equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
-                moveShapeRecursively(child, deltaX, deltaY);
-            }
+        if (!staticLayerExcluded.containsAll(group)) invalidateStaticLayer();
+        for (Shape shape : group) {
+            touch(shape);
         }
+        if (journal != null) journal.recordMoveGroup(group, deltaX, deltaY);
     }
     
-    private void updateConnectedLinks() {
-        Set<Object[]> affectedShapes = collectAffectedShapes();
+    // 準備拖動一組最上層形狀：依原本的先後移到最上層，並記下會隨之移動的連線
+    private void beginDraggingShapes(Iterable<Shape> group) {
+        clearDraggingShapes();
+        for (Shape shape : group) {
+            draggingShapes.add(shape);
+        }
+        draggingShapes.sort(Z_ORDER);
+        draggingSet.addAll(draggingShapes);
         
-        for (Object[] link : links) {
-            Object[] linkStartShape = (Object[]) link[1];
-            Object[] linkEndShape = (Object[]) link[2];
-            
-            if (affectedShapes.contains(linkStartShape)) {
-                updateLinkControlPoint(link, linkStartShape, 3, 4);
-            }
-            
-            if (affectedShapes.contains(linkEndShape)) {
-                updateLinkControlPoint(link, linkEndShape, 5, 6);
+        // 組內的形狀可能被組外的形狀蓋住，此時移到最上層會改變畫面
+        for (Shape shape : draggingShapes) {
+            raiseShape(shape);
+        }
+        
+        for (Shape shape : draggingShapes) {
+            for (Link link : shape.links) {
+                if (visitedLinks.add(link)) draggingLinks.add(link);
             }
         }
+        visitedLinks.clear();
+        damageDraggingShapes();
     }
     
-    private Set<Object[]> collectAffectedShapes() {
-        Set<Object[]> affected = new HashSet<>();
-        
-        if (isDraggingObject && draggingObject != null) {
-            affected.add(draggingObject);
-            
-            if (draggingObject[0].equals("composite")) {
-                collectCompositeChildren(draggingObject, affected);
-            }
+    private void clearDraggingShapes() {
+        // 靜態圖層以集合本身記下排除了哪些形狀，而下一次拖曳會重用同一個集合：
+        // 圖層缺了這組形狀，改變內容前先讓它失效
+        if (staticLayerExcluded == draggingSet) {
+            invalidateStaticLayer();
+            staticLayerExcluded = Collections.emptySet();
         }
-        
-        return affected;
+        draggingShapes.clear();
+        draggingSet.clear();
+        draggingLinks.clear();
     }
     
-    private void collectCompositeChildren(Object[] composite, Set<Object[]> collection) {
-        if (!composite[0].equals("composite")) return;
-        
-        for (Object[] child : (ArrayList<Object[]>) composite[5]) {
-            collection.add(child);
-            if (child[0].equals("composite")) {
-                collectCompositeChildren(child, collection);
-            }
+    void raiseShape(Shape shape) {
+        restackShape(shape, topZ + 1);
+    }
+    
+    void lowerShape(Shape shape) {
+        restackShape(shape, bottomZ - 1);
+    }
+    
+    // 把最上層形狀的 z 改為 z（不可與其他形狀相同），重播編輯日誌時用來還原原本的順序。
+    // 未被覆蓋的形狀移到最上層不會改變任何覆蓋計數，畫面也不變；其餘情況重新計算與它相交的形狀
+    @Override
+    public void restackShape(Shape shape, long z) {
+        boolean unchanged = z > topZ && !isShapeCoveredByOthers(shape);
+        if (!unchanged) removeCoverage(shape);
+        shapes.move(shape, z);
+        topZ = Math.max(topZ, z);
+        bottomZ = Math.min(bottomZ, z);
+        if (!unchanged) {
+            addCoverage(shape);
+            invalidateStaticLayer();
         }
+        // 單純改變堆疊順序不算一步編輯，隨下一次提交一起記錄
+        touchedShapes.add(shape);
+        if (journal != null) journal.recordRestack(shape);
     }
     
-    private void updateLinkControlPoint(Object[] link, Object[] shape, int xIndex, int yIndex) {
-        int origX = (int) link[xIndex], origY = (int) link[yIndex];
-        String type = (String) shape[0];
-        int sx = (int) shape[1], sy = (int) shape[2];
-        int sw = (int) shape[3], sh = (int) shape[4];
-        
-        int[][] controlPoints = getControlPoints(sx, sy, sw, sh, type);
-        int[] newPoint = findNearestControlPoint(controlPoints, origX, origY);
+    // 選取的形狀保持彼此的先後，一起移到最上層或最下層，作為一步編輯
+    public void bringSelectedToFront() {
+        if (selection.isEmpty()) return;
+        
+        ArrayList<Shape> ordered = selection.toList();
+        ordered.sort(Z_ORDER);
+        for (Shape shape : ordered) {
+            raiseShape(shape);
+            touch(shape);
+            damageShape(shape);
+        }
         
-        link[xIndex] = newPoint[0];
-        link[yIndex] = newPoint[1];
+        commitEdit();
+        flushDamage();
     }
     
-    private int[] findNearestControlPoint(int[][] points, int origX, int origY) {
-        if (points.length == 0) return new int[]{origX, origY};
+    public void sendSelectedToBack() {
+        if (selection.isEmpty()) return;
+        
+        ArrayList<Shape> ordered = selection.toList();
+        ordered.sort(Z_ORDER.reversed());
+        for (Shape shape : ordered) {
+            lowerShape(shape);
+            touch(shape);
+            damageShape(shape);
+        }
         
-        int[] nearest = points[0];
-        double minDistance = Double.MAX_VALUE;
+        commitEdit();
+        flushDamage();
+    }
+    
+    // 子形狀的座標相對於上層，移動 composite 只需更新它本身，子孫的畫布座標在用到時才重新計算
+    private void moveShape(Shape shape, int deltaX, int deltaY) {
+        shape.x += deltaX;
+        shape.y += deltaY;
+        if (shape.isComposite()) transformEpoch++;
+        
+        // 只有最上層形狀會被拖動，子形狀不在索引中
+        shapeIndex.update(shape, shape.x, shape.y, shape.width, shape.height);
+    }
+    
+    // 計算形狀的畫布座標並存入 worldX / worldY；子形狀的結果快取到下一次 transformEpoch 改變
+    private void resolveWorldPosition(Shape shape) {
+        Shape parent = shape.parent;
+        if (parent == null) {
+            shape.worldX = shape.x;
+            shape.worldY = shape.y;
+            return;
+        }
+        if (shape.worldEpoch == transformEpoch) return;
         
-        for (int[] p : points) {
-            double dist = distance(p[0], p[1], origX, origY);
-            if (dist < minDistance) {
-                minDistance = dist;
-                nearest = p;
+        resolveWorldPosition(parent);
+        shape.worldX = parent.worldX + shape.x;
+        shape.worldY = parent.worldY + shape.y;
+        shape.worldEpoch = transformEpoch;
+    }
+    
+    private void updateConnectedLinks(Shape moved, int deltaX, int deltaY) {
+        monitor.start(FrameMonitor.UPDATE_LINKS);
+        // 只處理端點落在被移動形狀（含子孫）上的連線
+        for (Link link : moved.links) {
+            if (link.start.isWithin(moved)) {
+                updateLinkControlPoint(link, link.start, true, deltaX, deltaY);
+            }
+            
+            if (link.end.isWithin(moved)) {
+                updateLinkControlPoint(link, link.end, false, deltaX, deltaY);
             }
         }
-        
-        return nearest;
+        monitor.stop(FrameMonitor.UPDATE_LINKS);
+    }
+    
+    private void updateLinkControlPoint(Link link, Shape shape, boolean atStart, int deltaX, int deltaY) {
+        // 端點可能在子形狀上，需先取得其畫布座標
+        resolveWorldPosition(shape);
+        link.moveEndpoint(atStart, shape, shape.worldX, shape.worldY, deltaX, deltaY);
+        if (!link.indexStale) {
+            link.indexStale = true;
+            staleLinks.add(link);
+        }
+    }
+    
+    // 端點改變後更新連線在索引中的範圍；格子範圍沒變時不做任何事
+    private void indexLink(Link link) {
+        linkIndex.update(link, Math.min(link.startX, link.endX), Math.min(link.startY, link.endY),
+            Math.abs(link.endX - link.startX), Math.abs(link.endY - link.startY));
     }
     
     // 組合相關方法
     public void groupSelectedShapes() {
-        if (selectedShapes.size() < 2) return;
+        if (selection.size() < 2) return;
         
-        // 計算組合邊界
-        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
-        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        Shape composite = groupShapes(selection.toList(), nextShapeId, topZ + 1);
         
-        for (Object[] shape : selectedShapes) {
-            int x = (int) shape[1], y = (int) shape[2];
-            int w = (int) shape[3], h = (int) shape[4];
-            
-            minX = Math.min(minX, x);
-            minY = Math.min(minY, y);
-            maxX = Math.max(maxX, x + w);
-            maxY = Math.max(maxY, y + h);
+        selection.set(composite);
+        
+        commitEdit();
+        repaint();
+    }
+    
+    // 將最上層的形狀組合成一個新的 composite，以 z 放在最上層
+    @Override
+    public Shape groupShapes(ArrayList<Shape> children, int id, long z) {
+        for (Shape shape : children) {
+            removeCoverage(shape);
+            shapeIndex.remove(shape);
+            shapes.remove(shape);
         }
         
-        // 創建組合物件
-        ArrayList<Object[]> children = new ArrayList<>(selectedShapes);
-        Object[] composite = new Object[] {
-            "composite", minX, minY, maxX - minX, maxY - minY, children
-        };
+        // 創建組合物件，子形狀改以它為原點
+        Shape composite = Shape.group(children);
+        composite.id = id;
+        composite.z = z;
+        nextShapeId = Math.max(nextShapeId, id + 1);
+        topZ = Math.max(topZ, z);
+        transformEpoch++;
         
-        shapes.removeAll(selectedShapes);
         shapes.add(composite);
+        shapeIndex.insert(composite, composite.x, composite.y, composite.width, composite.height);
+        addCoverage(composite);
+        overhangingLabels = null;
+        
+        invalidateStaticLayer();
+        touch(composite);
+        for (Shape child : children) {
+            touch(child);
+        }
+        if (journal != null) journal.recordGroup(composite);
+        return composite;
+    }
+    
+    public void ungroupSelectedShape() {
+        if (selection.size() != 1) return;
+        
+        Shape selected = selection.first();
+        if (!selected.isComposite()) return;
         
-        selectedShapes.clear();
-        selectedShapes.add(composite);
+        ungroupShape(selected, topZ + 1);
         
+        selection.setAll(selected.children);
+        
+        commitEdit();
         repaint();
     }
     
-    public void ungroupSelectedShape() {
-        if (selectedShapes.size() != 1) return;
+    // 拆開最上層的 composite，子形狀依序以 firstZ、firstZ + 1 ... 加到最上層
+    @Override
+    public void ungroupShape(Shape composite, long firstZ) {
+        ArrayList<Shape> children = composite.children;
+        
+        removeCoverage(composite);
+        shapeIndex.remove(composite);
+        
+        shapes.remove(composite);
+        
+        composite.ungroup(firstZ);
+        for (Shape child : children) {
+            shapes.add(child);
+            shapeIndex.insert(child, child.x, child.y, child.width, child.height);
+            addCoverage(child);
+        }
+        topZ = Math.max(topZ, firstZ + children.size() - 1);
+        transformEpoch++;
+        overhangingLabels = null;
+        
+        invalidateStaticLayer();
+        touch(composite);
+        for (Shape child : children) {
+            touch(child);
+        }
+        if (journal != null) journal.recordUngroup(composite);
+    }
+    
+    // 復原相關方法
+    public void undo() {
+        commitEdit();
+        EditHistory.Step step = history.undo();
+        if (step != null) applyHistoryStep(step);
+    }
+    
+    public void redo() {
+        commitEdit();
+        EditHistory.Step step = history.redo();
+        if (step != null) applyHistoryStep(step);
+    }
+    
+    void setHistoryBudget(long bytes) {
+        history.setBudget(bytes);
+    }
+    
+    private void touch(Shape shape) {
+        touchedShapes.add(shape);
+        hasUncommittedEdit = true;
+    }
+    
+    private void touch(Link link) {
+        touchedLinks.add(link);
+        hasUncommittedEdit = true;
+    }
+    
+    // 一次操作（例如一整段拖動）結束時，把期間修改的形狀與連線提交成一步復原
+    private void commitEdit() {
+        // 尚未套用的拖曳也屬於這次編輯
+        applyPendingDrag();
+        if (!hasUncommittedEdit) return;
+        
+        ArrayList<EditHistory.ShapeState> shapeStates = new ArrayList<>(touchedShapes.size());
+        for (Shape shape : touchedShapes) {
+            shapeStates.add(captureState(shape));
+        }
+        ArrayList<EditHistory.LinkState> linkStates = new ArrayList<>(touchedLinks.size());
+        for (Link link : touchedLinks) {
+            linkStates.add(captureState(link));
+        }
+        history.commit(shapeStates, linkStates);
         
-        Object[] selected = selectedShapes.get(0);
-        if (!selected[0].equals("composite")) return;
+        touchedShapes.clear();
+        touchedLinks.clear();
+        hasUncommittedEdit = false;
+    }
+    
+    // 以目前的圖表作為復原紀錄的起點，清除先前的紀錄
+    void resetHistory() {
+        touchedShapes.clear();
+        touchedLinks.clear();
+        hasUncommittedEdit = false;
+        
+        ArrayList<EditHistory.ShapeState> shapeStates = new ArrayList<>();
+        for (Shape shape : shapes) {
+            captureStates(shape, shapeStates);
+        }
+        ArrayList<EditHistory.LinkState> linkStates = new ArrayList<>(links.size());
+        for (Link link : links) {
+            linkStates.add(captureState(link));
+        }
+        history.reset(shapeStates, linkStates);
+    }
+    
+    private void captureStates(Shape shape, List<EditHistory.ShapeState> out) {
+        out.add(captureState(shape));
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                captureStates(child, out);
+            }
+        }
+    }
+    
+    private EditHistory.ShapeState captureState(Shape shape) {
+        // 只有最上層形狀在索引中，被拆開或復原移除的形狀不屬於任何最上層形狀
+        Shape root = shape;
+        while (root.parent != null) root = root.parent;
+        boolean present = shapeIndex.contains(root);
+        return new EditHistory.ShapeState(shape, present, shape.x, shape.y, shape.z, shape.parent, shape.label);
+    }
+    
+    private EditHistory.LinkState captureState(Link link) {
+        return new EditHistory.LinkState(link, true, link.startX, link.startY, link.endX, link.endY);
+    }
+    
+    // 套用復原、重做或日誌中的目標狀態
+    @Override
+    public void applyHistoryStep(EditHistory.Step step) {
+        resetDragStates();
         
-        ArrayList<Object[]> children = (ArrayList<Object[]>) selected[5];
+        // 先移除消失的連線，此時端點的上層關係還是舊的
+        for (EditHistory.LinkState state : step.links) {
+            if (!state.present && state.link.isAttached()) {
+                links.remove(state.link);
+                linkIndex.remove(state.link);
+                state.link.detach();
+            }
+        }
         
-        shapes.remove(selected);
-        shapes.addAll(children);
+        // 受影響的最上層形狀先移出索引、覆蓋計數與堆疊順序
+        Set<Shape> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (EditHistory.ShapeState state : step.shapes) {
+            Shape shape = state.shape;
+            if (shape.parent == null && shapeIndex.contains(shape)) affected.add(shape);
+        }
+        if (!affected.isEmpty()) {
+            removeCoverage(affected);
+            for (Shape shape : affected) {
+                shapes.remove(shape);
+            }
+        }
         
-        selectedShapes.clear();
-        selectedShapes.addAll(children);
+        // 狀態中的位置與形狀當時的上層相對，直接還原即可
+        for (EditHistory.ShapeState state : step.shapes) {
+            Shape shape = state.shape;
+            shape.parent = state.present ? state.parent : null;
+            shape.label = state.label;
+            shape.x = state.x;
+            shape.y = state.y;
+            shape.z = state.z;
+            nextShapeId = Math.max(nextShapeId, shape.id + 1);
+        }
+        transformEpoch++;
+        
+        // 重新出現的 composite 依子形狀重建連線清單，再把目標中的最上層形狀依 z 插回
+        Set<Shape> restored = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (EditHistory.ShapeState state : step.shapes) {
+            if (!state.present) continue;
+            Shape shape = state.shape;
+            if (shape.isComposite()) shape.rebuildLinks();
+            if (state.parent == null) {
+                shapes.add(shape);
+                restored.add(shape);
+                topZ = Math.max(topZ, shape.z);
+                bottomZ = Math.min(bottomZ, shape.z);
+            }
+        }
+        if (!restored.isEmpty()) addCoverage(restored);
+        
+        // 最後加回出現的連線並還原端點
+        for (EditHistory.LinkState state : step.links) {
+            if (!state.present) continue;
+            Link link = state.link;
+            if (!link.isAttached()) {
+                insertById(link);
+                link.attach();
+            }
+            link.startX = state.startX;
+            link.startY = state.startY;
+            link.endX = state.endX;
+            link.endY = state.endY;
+            indexLink(link);
+            nextLinkId = Math.max(nextLinkId, link.id + 1);
+        }
+        overhangingLabels = null;
         
+        // 選取中的形狀若已不在最上層則取消選取
+        selection.removeIf(shape -> shape.parent != null || !shapeIndex.contains(shape));
+        
+        if (journal != null) journal.recordRestore(step);
+        invalidateStaticLayer();
         repaint();
     }
     
+    // 連線依建立順序（編號）繪製，復原後放回原本的位置
+    private void insertById(Link link) {
+        int low = 0, high = links.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (links.get(mid).id < link.id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        links.add(low, link);
+    }
+    
     // 設定和狀態方法
     public void setMode(String mode) {
         this.currentMode = mode;
@@ -511,193 +1425,514 @@ class CanvasPanel extends JPanel {
     }
     
     private void resetDragStates() {
+        hasPendingDrag = false;
         isDraggingLink = isDraggingSelection = isDraggingObject = false;
         startControlPoint = null;
+        hasMagnet = false;
         dragStartX = dragStartY = dragCurrentX = dragCurrentY = -1;
         draggingObject = null;
+        hasDraggedObject = false;
+        clearDraggingShapes();
+        selectionPreview.clear();
         lastDragX = lastDragY = -1;
     }
     
     private boolean isLinkMode() {
-        return currentMode.equals("association") || 
-               currentMode.equals("generalization") || 
+        return currentMode.equals("association") ||
+               currentMode.equals("generalization") ||
                currentMode.equals("composition");
     }
     
     // 繪圖方法
     @Override
     protected void paintComponent(Graphics g) {
+        monitor.start(FrameMonitor.PAINT);
         super.paintComponent(g);
         
         Graphics2D g2d = (Graphics2D) g;
+        Rectangle clip = g.getClipBounds();
+        AffineTransform screenTransform = g2d.getTransform();
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
         
-        drawShapes(g);
+        // 拖動中的形狀與其連線不放進靜態圖層，改在上方即時繪製
+        Set<Shape> live = hasDraggedObject ? draggingSet : Collections.<Shape>emptySet();
+        ensureStaticLayer(g2d, live);
+        g.drawImage(staticLayer, 0, 0, getWidth(), getHeight(), null);
+        
+        // 以下在畫布座標中繪製
+        g2d.transform(viewTransform);
+        if (hasDraggedObject) {
+            for (Shape shape : draggingShapes) {
+                drawShape(g, shape);
+            }
+        }
         drawSelectionHighlights(g);
-        drawConnections(g);
-        drawLabels(g);
+        if (hasDraggedObject) {
+            monitor.start(FrameMonitor.DRAW_CONNECTIONS);
+            drawConnections(g, draggingLinks, Collections.<Shape>emptySet(), null);
+            monitor.stop(FrameMonitor.DRAW_CONNECTIONS);
+            for (Shape shape : draggingShapes) {
+                if (shape.label != null && !shape.isComposite()) {
+                    drawLabel(g, shape);
+                }
+            }
+        }
         drawControlPoints(g);
         drawDraggingLink(g);
+        drawMagnet(g);
         drawSelectionBox(g);
+        
+        if (monitor.isOverlayVisible()) {
+            g2d.setTransform(screenTransform);
+            monitor.drawOverlay(g2d);
+        }
+        monitor.frameFinished(clip);
     }
     
-    private void drawShapes(Graphics g) {
-        for (Object[] shape : shapes) {
-            drawShape(g, shape);
+    // 切換畫布左上角的效能統計面板
+    public void setPerformanceOverlayVisible(boolean visible) {
+        if (visible == monitor.isOverlayVisible()) return;
+        // 隱藏前先重繪面板範圍以清除；顯示後面板大小在第一次繪製時決定，先整個重繪
+        repaint(monitor.getOverlayBounds());
+        monitor.setOverlayVisible(visible);
+        if (visible) {
+            monitor.reset();
+            overlayTimer.start();
+            repaint();
+        } else {
+            overlayTimer.stop();
         }
     }
     
-    private void drawShape(Graphics g, Object[] shape) {
-        String type = (String) shape[0];
-        int x = (int) shape[1], y = (int) shape[2];
-        int w = (int) shape[3], h = (int) shape[4];
+    public boolean isPerformanceOverlayVisible() {
+        return monitor.isOverlayVisible();
+    }
+    
+    void invalidateStaticLayer() {
+        staticLayerValid = false;
+    }
+    
+    private void ensureStaticLayer(Graphics2D g2d, Set<Shape> excluded) {
+        // 以裝置縮放比例建立圖層，高 DPI 螢幕上才不會模糊
+        double scale = g2d.getTransform().getScaleX();
+        int width = Math.max(1, (int) Math.ceil(getWidth() * scale));
+        int height = Math.max(1, (int) Math.ceil(getHeight() * scale));
+        
+        if (staticLayerValid && staticLayerExcluded == excluded && staticLayerScale == scale
+                && staticLayer.getWidth() == width && staticLayer.getHeight() == height) {
+            return;
+        }
+        
+        if (staticLayer == null || staticLayer.getWidth() != width || staticLayer.getHeight() != height) {
+            staticLayer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        
+        monitor.start(FrameMonitor.STATIC_LAYER);
+        AffineTransform toDevice = AffineTransform.getScaleInstance(scale, scale);
+        toDevice.concatenate(viewTransform);
+        if (shapes.size() + links.size() >= PARALLEL_MIN_OBJECTS && TileRenderer.isWorthwhile(width, height)) {
+            // 分塊在其他執行緒上繪製，不分別記錄各階段的耗時
+            renderDiagram(staticLayer, toDevice, excluded);
+            monitor.stop(FrameMonitor.STATIC_LAYER);
+            staticLayerValid = true;
+            staticLayerExcluded = excluded;
+            staticLayerScale = scale;
+            return;
+        }
+        
+        Graphics2D layer = staticLayer.createGraphics();
+        layer.setColor(getBackground());
+        layer.fillRect(0, 0, width, height);
+        layer.transform(toDevice);
+        layer.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        layer.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        layer.setFont(getFont());
+        
+        // 只繪製與可見範圍相交的物件，形狀、連線與標籤都由索引取出可見範圍附近的
+        Rectangle visible = getVisibleWorldBounds();
+        List<Shape> nearby = shapesNear(visible);
+        monitor.start(FrameMonitor.DRAW_SHAPES);
+        drawShapes(layer, nearby, excluded, visible);
+        monitor.stop(FrameMonitor.DRAW_SHAPES);
+        monitor.start(FrameMonitor.DRAW_CONNECTIONS);
+        drawConnections(layer, linksNear(visible), excluded, visible);
+        monitor.stop(FrameMonitor.DRAW_CONNECTIONS);
+        monitor.start(FrameMonitor.DRAW_LABELS);
+        drawLabels(layer, mergeByZ(nearby, overhangingNear(visible)), excluded, visible);
+        monitor.stop(FrameMonitor.DRAW_LABELS);
+        monitor.stop(FrameMonitor.STATIC_LAYER);
+        layer.dispose();
+        
+        staticLayerValid = true;
+        staticLayerExcluded = excluded;
+        staticLayerScale = scale;
+    }
+    
+    // 把整張圖表（不含選取、控制點等編輯中的提示）繪製成影像，scale 為每個畫布單位的像素數。
+    // 影像在讀取時才逐條橫帶繪製，同時只佔用一條橫帶的記憶體；讀取完成前不可修改圖表
+    RenderedImage renderImage(double scale) {
+        Rectangle bounds = getDiagramBounds();
+        double width = Math.max(1, Math.ceil(bounds.width * scale));
+        double height = Math.max(1, Math.ceil(bounds.height * scale));
+        if (width > MAX_BAND_PIXELS || height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("影像過大：" + (long) width + " × " + (long) height);
+        }
+        
+        // 橫帶盡量是區塊的整數倍高，分塊平行繪製時才不會有零碎的區塊
+        int bandHeight = MAX_BAND_PIXELS / (int) width;
+        if (bandHeight >= TileRenderer.TILE_SIZE) bandHeight -= bandHeight % TileRenderer.TILE_SIZE;
+        return new BandImage((int) width, (int) height, bandHeight, (band, y) -> {
+            AffineTransform toDevice = AffineTransform.getTranslateInstance(0, -y);
+            toDevice.scale(scale, scale);
+            toDevice.translate(-bounds.x, -bounds.y);
+            renderDiagram(band, toDevice, Collections.<Shape>emptySet());
+        });
+    }
+    
+    // 以 toDevice 把形狀、連線與標籤繪製到 TYPE_INT_RGB 的 target 上，影像夠大時分塊平行繪製
+    private void renderDiagram(BufferedImage target, AffineTransform toDevice, Set<Shape> excluded) {
+        // 箭頭快取是唯一會在繪製時寫入的狀態，先在這個執行緒更新，各區塊只讀取
+        for (Link link : links) {
+            updateArrowHead(link);
+        }
+        
+        Font font = getFont();
+        if (!TileRenderer.isWorthwhile(target.getWidth(), target.getHeight())) {
+            Rectangle visible = TileRenderer.worldBounds(target.getWidth(), target.getHeight(), toDevice);
+            Graphics2D g = target.createGraphics();
+            g.setColor(getBackground());
+            g.fillRect(0, 0, target.getWidth(), target.getHeight());
+            g.transform(toDevice);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            g.setFont(font);
+            List<Shape> nearby = shapesNear(visible);
+            drawShapes(g, nearby, excluded, visible);
+            drawConnections(g, linksNear(visible), excluded, visible);
+            drawLabels(g, mergeByZ(nearby, overhangingNear(visible)), excluded, visible);
+            g.dispose();
+            return;
+        }
         
+        // 各區塊只走訪與它相交的物件：連線在這裡依區塊分組一次，形狀由各區塊查詢索引。
+        // 標籤可能超出形狀，這種形狀另外列出，每個區塊都檢查
+        List<List<Link>> linksByTile = TileRenderer.bucket(target.getWidth(), target.getHeight(), toDevice,
+            links, CanvasPanel::linkBounds);
+        List<Shape> overhanging = overhangingNear(TileRenderer.worldBounds(target.getWidth(), target.getHeight(), toDevice));
+        
+        TileRenderer.render(target, getBackground(), toDevice, (g, tile, visible) -> {
+            g.setFont(font);
+            List<Shape> nearby = shapesNear(visible);
+            drawShapes(g, nearby, excluded, visible);
+            drawConnections(g, linksByTile.get(tile), excluded, visible);
+            drawLabels(g, mergeByZ(nearby, overhanging), excluded, visible);
+        });
+    }
+    
+    // 可能與 visible 相交的最上層形狀，依 z 由下到上。繪製區塊時在多個執行緒上同時呼叫，
+    // 因此以自己的集合去除重複
+    private List<Shape> shapesNear(Rectangle visible) {
+        ArrayList<Shape> nearby = new ArrayList<>();
+        shapeIndex.query(visible.x - DAMAGE_MARGIN, visible.y - DAMAGE_MARGIN,
+            visible.width + 2 * DAMAGE_MARGIN, visible.height + 2 * DAMAGE_MARGIN,
+            nearby, Collections.newSetFromMap(new IdentityHashMap<>()));
+        nearby.sort(Z_ORDER);
+        return nearby;
+    }
+    
+    // 可能與 visible 相交的連線，依繪製順序排列。可見範圍涵蓋的格子比連線還多時直接走訪全部連線
+    private List<Link> linksNear(Rectangle visible) {
+        for (Link link : staleLinks) {
+            // 之後被復原移除的連線不再放回索引
+            if (link.isAttached()) indexLink(link);
+            link.indexStale = false;
+        }
+        staleLinks.clear();
+        
+        long cells = ((long) visible.width / GRID_CELL_SIZE + 1) * ((long) visible.height / GRID_CELL_SIZE + 1);
+        if (cells >= links.size()) return links;
+        ArrayList<Link> nearby = new ArrayList<>();
+        linkIndex.query(visible.x - DAMAGE_MARGIN, visible.y - DAMAGE_MARGIN,
+            visible.width + 2 * DAMAGE_MARGIN, visible.height + 2 * DAMAGE_MARGIN, nearby);
+        nearby.sort(LINK_ORDER);
+        return nearby;
+    }
+    
+    // 標籤可能超出形狀、且可能與 visible 相交的最上層形狀，依 z 由下到上。
+    // 這種形狀不一定在 shapesNear 的結果中，另外列出後再與其合併
+    private List<Shape> overhangingNear(Rectangle visible) {
+        if (overhangingLabels == null) {
+            overhangingLabels = new ArrayList<>();
+            for (Shape shape : shapes) {
+                if (shape.label != null && !shape.isComposite() && isLabelOverhanging(shape)) overhangingLabels.add(shape);
+            }
+        }
+        ArrayList<Shape> nearby = new ArrayList<>();
+        for (Shape shape : overhangingLabels) {
+            if (isLabelBoundVisible(shape, visible)) nearby.add(shape);
+        }
+        nearby.sort(Z_ORDER);
+        return nearby;
+    }
+    
+    // 合併兩個依 z 排列的形狀清單；z 不重複，相同的 z 即為同一個形狀
+    private static List<Shape> mergeByZ(List<Shape> a, List<Shape> b) {
+        if (b.isEmpty()) return a;
+        ArrayList<Shape> merged = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j == b.size() || (i < a.size() && a.get(i).z < b.get(j).z)) {
+                merged.add(a.get(i++));
+            } else {
+                if (i < a.size() && a.get(i).z == b.get(j).z) i++;
+                merged.add(b.get(j++));
+            }
+        }
+        return merged;
+    }
+    
+    // 標籤框或文字可能超出形狀的邊界
+    private static boolean isLabelOverhanging(Shape shape) {
+        LabelLayout layout = LabelLayout.of(shape.label);
+        return layout.widthUpperBound() > shape.width || layout.height() > shape.height;
+    }
+    
+    // 連線（含箭頭與端點）在畫布上的範圍
+    private static Rectangle linkBounds(Link link) {
+        Rectangle r = new Rectangle(Math.min(link.startX, link.endX), Math.min(link.startY, link.endY),
+            Math.abs(link.endX - link.startX), Math.abs(link.endY - link.startY));
+        r.grow(DAMAGE_MARGIN, DAMAGE_MARGIN);
+        return r;
+    }
+    
+    // 圖表內所有物件（含箭頭、端點與標籤）的範圍；沒有任何物件時為原點的一個單位
+    Rectangle getDiagramBounds() {
+        Rectangle bounds = null;
+        Graphics g = LabelLayout.measuringGraphics();
+        for (Shape shape : shapes) {
+            Rectangle r = new Rectangle(shape.x, shape.y, shape.width, shape.height);
+            if (shape.label != null && !shape.isComposite()) {
+                LabelLayout layout = LabelLayout.of(shape.label);
+                int w = layout.width(g), h = layout.height();
+                r.add(new Rectangle(shape.x + (shape.width - w) / 2, shape.y + (shape.height - h) / 2, w, h));
+            }
+            bounds = bounds == null ? r : bounds.union(r);
+        }
+        g.dispose();
+        for (Link link : links) {
+            Rectangle r = linkBounds(link);
+            bounds = bounds == null ? r : bounds.union(r);
+        }
+        return bounds != null ? bounds : new Rectangle(0, 0, 1, 1);
+    }
+    
+    // candidates 為依 z 由下到上的最上層形狀
+    private void drawShapes(Graphics g, Iterable<Shape> candidates, Set<Shape> excluded, Rectangle visible) {
+        for (Shape shape : candidates) {
+            if (!excluded.contains(shape) && isVisible(visible, shape.x, shape.y, shape.width, shape.height)) {
+                drawShape(g, shape);
+            }
+        }
+    }
+    
+    private void drawShape(Graphics g, Shape shape) {
+        drawShape(g, shape, 0, 0);
+    }
+    
+    private void drawShape(Graphics g, Shape shape, int originX, int originY) {
+        int x = originX + shape.x, y = originY + shape.y;
         g.setColor(SHAPE_COLOR);
-        if (type.equals("rect")) {
-            g.fillRect(x, y, w, h);
-        } else if (type.equals("oval")) {
-            g.fillOval(x, y, w, h);
-        } else if (type.equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
-                drawShape(g, child);
+        if (shape.type.equals("rect")) {
+            g.fillRect(x, y, shape.width, shape.height);
+        } else if (shape.type.equals("oval")) {
+            g.fillOval(x, y, shape.width, shape.height);
+        } else if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                drawShape(g, child, x, y);
             }
         }
     }
     
     private void drawSelectionHighlights(Graphics g) {
-        if (selectedShapes.isEmpty()) return;
-        
         g.setColor(SELECTION_COLOR);
-        for (Object[] shape : selectedShapes) {
-            drawSelectionHighlight(g, shape);
+        for (Shape shape : displayedSelection()) {
+            drawSelectionHighlight(g, shape, 0, 0);
         }
     }
     
-    private void drawSelectionHighlight(Graphics g, Object[] shape) {
-        String type = (String) shape[0];
-        int x = (int) shape[1], y = (int) shape[2];
-        int w = (int) shape[3], h = (int) shape[4];
+    private void drawSelectionHighlight(Graphics g, Shape shape, int originX, int originY) {
+        int x = originX + shape.x, y = originY + shape.y;
+        int w = shape.width, h = shape.height;
         
-        if (type.equals("rect")) {
+        if (shape.type.equals("rect")) {
             g.drawRect(x-2, y-2, w+4, h+4);
-        } else if (type.equals("oval")) {
+        } else if (shape.type.equals("oval")) {
             g.drawOval(x-2, y-2, w+4, h+4);
-        } else if (type.equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
-                drawSelectionHighlight(g, child);
+        } else if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                drawSelectionHighlight(g, child, x, y);
             }
         }
     }
     
-    private void drawConnections(Graphics g) {
+    // 略過端點落在 excluded 中的形狀（含子孫）上的連線；visible 為 null 時不裁切。
+    // 每條連線依序畫出線段、箭頭與端點，後畫的連線蓋在先畫的上面；
+    // 線段連同開放箭頭是同一條快取的路徑，一次描邊。
+    // 不依樣式合併成一條路徑：反鋸齒時交疊處只計算一次覆蓋率，結果與逐條繪製不同，
+    // 合併後也不比逐條繪製快，時間都花在點陣化上
+    private void drawConnections(Graphics g, List<Link> linkList, Set<Shape> excluded, Rectangle visible) {
         Graphics2D g2d = (Graphics2D) g;
-        g2d.setColor(Color.BLACK);
         Stroke original = g2d.getStroke();
-        g2d.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        
-        for (Object[] link : links) {
-            drawLink(g, link);
+        g2d.setStroke(LINK_STROKE);
+        int half = CONTROL_POINT_SIZE / 2;
+        
+        for (Link link : linkList) {
+            int x = Math.min(link.startX, link.endX), y = Math.min(link.startY, link.endY);
+            int width = Math.abs(link.endX - link.startX), height = Math.abs(link.endY - link.startY);
+            if (!isVisible(visible, x, y, width, height)) continue;
+            if (!excluded.isEmpty() && (excluded.contains(link.start.root()) || excluded.contains(link.end.root()))) continue;
+            updateArrowHead(link);
+            
+            g.setColor(Color.BLACK);
+            g2d.draw(link.outline);
+            if (link.headStyle == HEAD_FILLED) {
+                g2d.fill(link.head);
+            } else if (link.headStyle == HEAD_HOLLOW) {
+                // 空心三角形：先以白色蓋住線段的末端再描邊
+                g.setColor(Color.WHITE);
+                g2d.fill(link.head);
+                g.setColor(Color.BLACK);
+                g2d.draw(link.head);
+            }
+            
+            g.setColor(CONTROL_POINT_COLOR);
+            g.fillRect(link.startX - half, link.startY - half, CONTROL_POINT_SIZE, CONTROL_POINT_SIZE);
+            g.fillRect(link.endX - half, link.endY - half, CONTROL_POINT_SIZE, CONTROL_POINT_SIZE);
         }
         
         g2d.setStroke(original);
     }
     
-    private void drawLink(Graphics g, Object[] link) {
-        String type = (String) link[0];
-        int x1 = (int) link[3], y1 = (int) link[4];
-        int x2 = (int) link[5], y2 = (int) link[6];
+    // 箭頭頂點與繪製路徑只在端點移動後才重新計算，路徑物件沿用
+    private void updateArrowHead(Link link) {
+        if (link.headX != null && link.headStartX == link.startX && link.headStartY == link.startY
+                && link.headEndX == link.endX && link.headEndY == link.endY) {
+            return;
+        }
+        link.headStyle = headStyle(link.type);
+        if (link.headX == null) {
+            link.headX = new int[4];
+            link.headY = new int[4];
+        }
+        computeArrowHead(link.startX, link.startY, link.endX, link.endY, link.headStyle, link.headX, link.headY);
         
-        // 繪製直線
-        g.drawLine(x1, y1, x2, y2);
-        drawArrow(g, x1, y1, x2, y2, type);
+        if (link.outline == null) {
+            link.outline = new Path2D.Float();
+            link.head = new Path2D.Float();
+        }
+        int[] hx = link.headX, hy = link.headY;
+        link.outline.reset();
+        link.outline.moveTo(link.startX, link.startY);
+        link.outline.lineTo(link.endX, link.endY);
+        link.head.reset();
+        if (link.headStyle == HEAD_OPEN) {
+            link.outline.moveTo(hx[1], hy[1]);
+            link.outline.lineTo(hx[0], hy[0]);
+            link.outline.lineTo(hx[2], hy[2]);
+        } else if (link.headStyle == HEAD_FILLED || link.headStyle == HEAD_HOLLOW) {
+            int count = link.headStyle == HEAD_FILLED ? 4 : 3;
+            link.head.moveTo(hx[0], hy[0]);
+            for (int i = 1; i < count; i++) {
+                link.head.lineTo(hx[i], hy[i]);
+            }
+            link.head.closePath();
+        }
         
-        // 繪製控制點
-        drawControlPoint(g, x1, y1);
-        drawControlPoint(g, x2, y2);
+        link.headStartX = link.startX;
+        link.headStartY = link.startY;
+        link.headEndX = link.endX;
+        link.headEndY = link.endY;
+    }
+    
+    static int headStyle(String type) {
+        if (type.equals("generalization")) return HEAD_HOLLOW;
+        if (type.equals("composition")) return HEAD_FILLED;
+        if (type.equals("association")) return HEAD_OPEN;
+        return HEAD_NONE;
     }
     
+    // 拖曳中的連線預覽只有一條，直接計算並繪製
     private void drawArrow(Graphics g, int x1, int y1, int x2, int y2, String type) {
-        double angle = Math.atan2(y2 - y1, x2 - x1);
+        int style = headStyle(type);
+        int[] xPoints = new int[4], yPoints = new int[4];
+        computeArrowHead(x1, y1, x2, y2, style, xPoints, yPoints);
         
-        if (type.equals("generalization")) {
-            // 繪製繼承關係箭頭（空心三角形）
-            int[] xPoints = {
-                x2, 
-                x2 - (int) (ARROW_SIZE * Math.cos(angle - Math.PI / 6)), 
-                x2 - (int) (ARROW_SIZE * Math.cos(angle + Math.PI / 6))
-            };
-            int[] yPoints = {
-                y2, 
-                y2 - (int) (ARROW_SIZE * Math.sin(angle - Math.PI / 6)), 
-                y2 - (int) (ARROW_SIZE * Math.sin(angle + Math.PI / 6))
-            };
-            
+        if (style == HEAD_HOLLOW) {
             Color orig = g.getColor();
             g.setColor(Color.WHITE);
             g.fillPolygon(xPoints, yPoints, 3);
             g.setColor(orig);
             g.drawPolygon(xPoints, yPoints, 3);
-        } else if (type.equals("composition")) {
-            // 繪製組合關係箭頭（實心菱形）
-            int size = ARROW_SIZE;
-            int[] xPoints = {
-                x2,
-                x2 - (int)(size * Math.cos(angle - Math.PI/4)),
-                x2 - (int)(size * Math.sqrt(2) * Math.cos(angle)),
-                x2 - (int)(size * Math.cos(angle + Math.PI/4))
-            };
-            int[] yPoints = {
-                y2,
-                y2 - (int)(size * Math.sin(angle - Math.PI/4)),
-                y2 - (int)(size * Math.sqrt(2) * Math.sin(angle)),
-                y2 - (int)(size * Math.sin(angle + Math.PI/4))
-            };
-            
+        } else if (style == HEAD_FILLED) {
             g.fillPolygon(xPoints, yPoints, 4);
-        } else if (type.equals("association")) {
-            // 繪製關聯關係箭頭（開放箭頭）
-            g.drawLine(x2, y2, 
-                      x2 - (int) (ARROW_SIZE * Math.cos(angle - Math.PI / 6)), 
-                      y2 - (int) (ARROW_SIZE * Math.sin(angle - Math.PI / 6)));
-            g.drawLine(x2, y2, 
-                      x2 - (int) (ARROW_SIZE * Math.cos(angle + Math.PI / 6)), 
-                      y2 - (int) (ARROW_SIZE * Math.sin(angle + Math.PI / 6)));
+        } else if (style == HEAD_OPEN) {
+            g.drawLine(xPoints[0], yPoints[0], xPoints[1], yPoints[1]);
+            g.drawLine(xPoints[0], yPoints[0], xPoints[2], yPoints[2]);
         }
     }
     
-    private void drawControlPoints(Graphics g) {
-        if (selectedShapes.isEmpty()) return;
+    // 箭頭頂點寫入 xPoints / yPoints，第一個點為箭頭尖端：
+    // 繼承為空心三角形（3 點）、組合為實心菱形（4 點）、關聯為從尖端畫出的兩條線（3 點）
+    static void computeArrowHead(int x1, int y1, int x2, int y2, int style, int[] xPoints, int[] yPoints) {
+        double angle = Math.atan2(y2 - y1, x2 - x1);
+        xPoints[0] = x2;
+        yPoints[0] = y2;
         
+        if (style == HEAD_FILLED) {
+            int size = ARROW_SIZE;
+            xPoints[1] = x2 - (int)(size * Math.cos(angle - Math.PI/4));
+            xPoints[2] = x2 - (int)(size * Math.sqrt(2) * Math.cos(angle));
+            xPoints[3] = x2 - (int)(size * Math.cos(angle + Math.PI/4));
+            yPoints[1] = y2 - (int)(size * Math.sin(angle - Math.PI/4));
+            yPoints[2] = y2 - (int)(size * Math.sqrt(2) * Math.sin(angle));
+            yPoints[3] = y2 - (int)(size * Math.sin(angle + Math.PI/4));
+        } else if (style != HEAD_NONE) {
+            xPoints[1] = x2 - (int) (ARROW_SIZE * Math.cos(angle - Math.PI / 6));
+            xPoints[2] = x2 - (int) (ARROW_SIZE * Math.cos(angle + Math.PI / 6));
+            yPoints[1] = y2 - (int) (ARROW_SIZE * Math.sin(angle - Math.PI / 6));
+            yPoints[2] = y2 - (int) (ARROW_SIZE * Math.sin(angle + Math.PI / 6));
+        }
+    }
+    
+    private void drawControlPoints(Graphics g) {
         g.setColor(Color.BLACK);
-        for (Object[] shape : selectedShapes) {
+        for (Shape shape : displayedSelection()) {
             if (!isShapeCoveredByOthers(shape)) {
-                drawShapeControlPoints(g, shape);
+                drawShapeControlPoints(g, shape, 0, 0);
             }
         }
     }
     
-    private void drawShapeControlPoints(Graphics g, Object[] shape) {
-        String type = (String) shape[0];
-        int x = (int) shape[1], y = (int) shape[2];
-        int w = (int) shape[3], h = (int) shape[4];
-        
-        if (type.equals("composite")) {
-            for (Object[] child : (ArrayList<Object[]>) shape[5]) {
+    private void drawShapeControlPoints(Graphics g, Shape shape, int originX, int originY) {
+        int x = originX + shape.x, y = originY + shape.y;
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
                 if (!isShapeCoveredByOthers(child)) {
-                    drawShapeControlPoints(g, child);
+                    drawShapeControlPoints(g, child, x, y);
                 }
             }
         } else {
-            for (int[] p : getControlPoints(x, y, w, h, type)) {
-                drawControlPoint(g, p[0], p[1]);
+            int[] offsets = shape.controlPointOffsets();
+            for (int i = 0; i < offsets.length; i += 2) {
+                drawControlPoint(g, x + offsets[i], y + offsets[i + 1]);
             }
         }
     }
     
     private void drawControlPoint(Graphics g, int x, int y) {
         int size = CONTROL_POINT_SIZE;
-        g.setColor(new Color(0, 0, 0, 150));
+        g.setColor(CONTROL_POINT_COLOR);
         g.fillRect(x - size/2, y - size/2, size, size);
     }
     
@@ -708,10 +1943,18 @@ class CanvasPanel extends JPanel {
         
         // 直接從起點到當前滑鼠位置繪製線段
         g.drawLine(startControlPoint[0], startControlPoint[1], currentMousePos[0], currentMousePos[1]);
-        drawArrow(g, startControlPoint[0], startControlPoint[1], 
+        drawArrow(g, startControlPoint[0], startControlPoint[1],
                  currentMousePos[0], currentMousePos[1], currentMode);
     }
     
+    private void drawMagnet(Graphics g) {
+        if (!hasMagnet) return;
+        
+        g.setColor(SELECTION_COLOR);
+        g.drawOval(magnetX - CONTROL_POINT_RADIUS, magnetY - CONTROL_POINT_RADIUS,
+                   2 * CONTROL_POINT_RADIUS, 2 * CONTROL_POINT_RADIUS);
+    }
+    
     private void drawSelectionBox(Graphics g) {
         if (!isDraggingSelection || dragStartX == -1 || dragCurrentX == -1) return;
         
@@ -726,70 +1969,65 @@ class CanvasPanel extends JPanel {
         g.setColor(SELECTION_COLOR);
         g.drawRect(x, y, width, height);
     }
-
+    
     // 標籤相關方法
     public void setLabelToSelectedShape(String labelText, String labelShape, Color labelColor, int fontSize) {
-        if (selectedShapes.isEmpty()) return;
-        
-        Object[] shape = selectedShapes.get(0);
-        if (shape[0].equals("composite")) return; // 不支持為組合形狀設置標籤
-        
-        // 創建標籤設置並存儲在形狀的第6個元素
-        Object[] labelSettings = {labelText, labelShape, labelColor, fontSize};
-        shape[5] = labelSettings;
+        Shape shape = selection.first();
+        if (shape == null || shape.isComposite()) return; // 不支持為組合形狀設置標籤
         
+        setLabel(shape, new ShapeLabel(labelText, labelShape, labelColor, fontSize));
+        commitEdit();
         repaint();
     }
-
-    private void drawLabels(Graphics g) {
-        for (Object[] shape : shapes) {
-            if (shape.length > 5 && shape[5] != null && !shape[0].equals("composite")) {
+    
+    @Override
+    public void setLabel(Shape shape, ShapeLabel label) {
+        shape.label = label;
+        overhangingLabels = null;
+        invalidateStaticLayer();
+        touch(shape);
+        if (journal != null) journal.recordLabel(shape);
+    }
+    
+    private void drawLabels(Graphics g, Iterable<Shape> candidates, Set<Shape> excluded, Rectangle visible) {
+        for (Shape shape : candidates) {
+            if (!excluded.contains(shape) && shape.label != null && !shape.isComposite()
+                    && (isVisible(visible, shape.x, shape.y, shape.width, shape.height)
+                        || isLabelVisible(g, shape, visible))) {
                 drawLabel(g, shape);
             }
         }
     }
     
-    private void drawLabel(Graphics g, Object[] shape) {
-        int x = (int) shape[1], y = (int) shape[2];
-        int w = (int) shape[3], h = (int) shape[4];
-        Object[] labelSettings = (Object[]) shape[5];
-        
-        if (labelSettings == null) return;
-        
-        String text = (String) labelSettings[0];
-        String labelShape = (String) labelSettings[1];
-        Color color = (Color) labelSettings[2];
-        int fontSize = (int) labelSettings[3];
+    // 標籤框或過長的文字可能超出形狀；先以不需量測的上限排除，剩下的才量測文字
+    private static boolean isLabelVisible(Graphics g, Shape shape, Rectangle visible) {
+        if (!isLabelBoundVisible(shape, visible)) return false;
+        if (visible == null) return true;
+        LabelLayout layout = LabelLayout.of(shape.label);
+        int height = Math.max(shape.height, layout.height());
+        int width = Math.max(shape.width, layout.width(g));
+        return isVisible(visible, shape.x + (shape.width - width) / 2, shape.y + (shape.height - height) / 2, width, height);
+    }
+    
+    // 以不需量測的寬度上限判斷標籤是否可能與 visible 相交
+    private static boolean isLabelBoundVisible(Shape shape, Rectangle visible) {
+        if (visible == null) return true;
+        LabelLayout layout = LabelLayout.of(shape.label);
+        int height = Math.max(shape.height, layout.height());
+        int bound = Math.max(shape.width, layout.widthUpperBound());
+        return isVisible(visible, shape.x + (shape.width - bound) / 2, shape.y + (shape.height - height) / 2, bound, height);
+    }
+    
+    private void drawLabel(Graphics g, Shape shape) {
+        ShapeLabel label = shape.label;
+        if (label == null) return;
         
         // 保存原始字體和顏色
         Font originalFont = g.getFont();
         Color originalColor = g.getColor();
         
-        // 設置字體
-        g.setFont(new Font("SansSerif", Font.PLAIN, fontSize));
-        FontMetrics fm = g.getFontMetrics();
-        
-        // 計算文字位置
-        int textWidth = fm.stringWidth(text);
-        int labelWidth = 80;  
-        int labelHeight = 60;  
-        
-        // 計算標籤位置和文字位置
-        int labelX = x + (w - labelWidth) / 2;
-        int labelY = y + (h - labelHeight) / 2;
-        int textX = labelX + (labelWidth - textWidth) / 2;
-        int textY = labelY + (labelHeight + fm.getAscent() - fm.getDescent()) / 2;
-        
-        // 根據標籤形狀繪製標籤背景
-        g.setColor(color);
-        if (labelShape.equalsIgnoreCase("rect")) {
-            g.fillRect(labelX, labelY, labelWidth, labelHeight);
-        } else if (labelShape.equalsIgnoreCase("oval")) {
-            g.fillOval(labelX, labelY, labelWidth, labelHeight);
-        }
-
-        g.setColor(Color.BLACK);
-        g.drawString(text, textX, textY);
+        // 字體、顏色與文字位置都取自快取的排版
+        LabelLayout.of(label).draw(g, shape.x, shape.y, shape.width, shape.height);
         
         // 恢復原始設置
         g.setFont(originalFont);
@@ -0,0 +1,337 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// 圖表的二進位檔案格式（所有整數皆為 big-endian int）：
+//   標頭      MAGIC, VERSION, 字串數, 形狀數, 最上層形狀數, 子形狀紀錄數, 連線數
+//   字串表    每筆為 UTF-8 位元組長度 + 位元組，形狀類型、標籤文字等都以索引引用
+//   形狀      每筆 SHAPE_RECORD 個 int：編號, 堆疊順序 z（高、低 32 位元）, 類型, x, y, 寬, 高,
+//             標籤文字, 標籤形狀, 標籤顏色, 字體大小；子形狀的 x, y 相對於所屬的 composite
+//   最上層    形狀索引，依 z 由下到上
+//   子形狀    每筆 (composite 索引, 子形狀索引)，依子形狀順序
+//   連線      每筆 LINK_RECORD 個 int：編號, 類型, 起點形狀索引, 終點形狀索引, 起點 x, y, 終點 x, y
+// 除了字串表外都是固定長度的紀錄，讀取時唯讀對映檔案，把各區段批次複製到 int 陣列，不需逐字解析。
+// 檔案內容不會整個複製到 heap；load 返回後不再引用對映，對映隨 buffer 被回收而解除
+class DiagramFile {
+    static final String EXTENSION = "wfd";
+
+    private static final int MAGIC = 0x57464447; // "WFDG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 7;
+    private static final int SHAPE_RECORD = 12;
+    private static final int CHILD_RECORD = 2;
+    private static final int LINK_RECORD = 8;
+    private static final int NO_LABEL = -1;
+    // 單次對映的大小上限，更大的檔案分段對映；各區段的 int 陣列長度上限
+    private static final int MAP_WINDOW = 1 << 30;
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    private DiagramFile() {
+    }
+
+    public static void save(DiagramModel canvas, File file) throws IOException {
+        List<Shape> topShapes = canvas.getShapes();
+        List<Link> links = canvas.getLinks();
+
+        // 以前序走訪為所有形狀（含子孫）編號
+        ArrayList<Shape> allShapes = new ArrayList<>();
+        IdentityHashMap<Shape, Integer> indices = new IdentityHashMap<>();
+        for (Shape shape : topShapes) {
+            collectShapes(shape, allShapes, indices);
+        }
+
+        ArrayList<String> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndices = new HashMap<>();
+        int childCount = 0;
+        for (Shape shape : allShapes) {
+            intern(shape.type, strings, stringIndices);
+            if (shape.label != null) {
+                intern(shape.label.text, strings, stringIndices);
+                intern(shape.label.shape, strings, stringIndices);
+            }
+            if (shape.isComposite()) childCount += shape.children.size();
+        }
+        for (Link link : links) {
+            intern(link.type, strings, stringIndices);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(allShapes.size());
+            out.writeInt(topShapes.size());
+            out.writeInt(childCount);
+            out.writeInt(links.size());
+
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            for (Shape shape : allShapes) {
+                out.writeInt(shape.id);
+                out.writeInt((int) (shape.z >>> 32));
+                out.writeInt((int) shape.z);
+                out.writeInt(stringIndices.get(shape.type));
+                out.writeInt(shape.x);
+                out.writeInt(shape.y);
+                out.writeInt(shape.width);
+                out.writeInt(shape.height);
+                ShapeLabel label = shape.label;
+                if (label != null) {
+                    out.writeInt(stringIndices.get(label.text));
+                    out.writeInt(stringIndices.get(label.shape));
+                    out.writeInt(label.color.getRGB());
+                    out.writeInt(label.fontSize);
+                } else {
+                    out.writeInt(NO_LABEL);
+                    out.writeInt(NO_LABEL);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                }
+            }
+
+            for (Shape shape : topShapes) {
+                out.writeInt(indices.get(shape));
+            }
+
+            for (Shape shape : allShapes) {
+                if (!shape.isComposite()) continue;
+                int parent = indices.get(shape);
+                for (Shape child : shape.children) {
+                    out.writeInt(parent);
+                    out.writeInt(indices.get(child));
+                }
+            }
+
+            for (Link link : links) {
+                out.writeInt(link.id);
+                out.writeInt(stringIndices.get(link.type));
+                out.writeInt(indices.get(link.start));
+                out.writeInt(indices.get(link.end));
+                out.writeInt(link.startX);
+                out.writeInt(link.startY);
+                out.writeInt(link.endX);
+                out.writeInt(link.endY);
+            }
+        }
+    }
+
+    public static void load(DiagramModel canvas, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            read(canvas, new MappedInput(channel));
+        } catch (RuntimeException e) {
+            // 截斷或損毀的檔案會在讀取時越界或索引錯誤
+            throw new IOException("圖表檔案已損毀：" + file.getName(), e);
+        }
+    }
+
+    private static void read(DiagramModel canvas, MappedInput input) throws IOException {
+        if (input.remaining() < HEADER_SIZE * 4 || input.getInt() != MAGIC) {
+            throw new IOException("不是有效的圖表檔案");
+        }
+        int version = input.getInt();
+        if (version != VERSION) {
+            throw new IOException("不支援的圖表檔案版本：" + version);
+        }
+        int stringCount = input.getInt();
+        int shapeCount = input.getInt();
+        int topCount = input.getInt();
+        int childCount = input.getInt();
+        int linkCount = input.getInt();
+
+        // 配置陣列前先確認計數與長度都放得進檔案剩下的內容，損毀的標頭不會配置過大或負長度的陣列
+        if (stringCount < 0 || shapeCount < 0 || topCount < 0 || childCount < 0 || linkCount < 0
+                || stringCount > input.remaining() / 4) {
+            throw new IOException("圖表檔案的標頭已損毀");
+        }
+
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int length = input.getInt();
+            if (length < 0 || length > input.remaining()) {
+                throw new IOException("圖表檔案的字串表已損毀");
+            }
+            strings[i] = input.getString(length);
+        }
+
+        long recordInts = (long) shapeCount * SHAPE_RECORD + topCount
+            + (long) childCount * CHILD_RECORD + (long) linkCount * LINK_RECORD;
+        if (recordInts > input.remaining() / 4) {
+            throw new IOException("圖表檔案已截斷");
+        }
+        if ((long) shapeCount * SHAPE_RECORD > MAX_ARRAY || (long) childCount * CHILD_RECORD > MAX_ARRAY
+                || (long) linkCount * LINK_RECORD > MAX_ARRAY) {
+            throw new IOException("圖表檔案過大");
+        }
+
+        // 其餘區段都是 int 陣列，從對映批次複製
+        int[] shapeRecords = new int[shapeCount * SHAPE_RECORD];
+        int[] topRecords = new int[topCount];
+        int[] childRecords = new int[childCount * CHILD_RECORD];
+        int[] linkRecords = new int[linkCount * LINK_RECORD];
+        input.getInts(shapeRecords);
+        input.getInts(topRecords);
+        input.getInts(childRecords);
+        input.getInts(linkRecords);
+
+        // composite 的子形狀清單需在建構時傳入，先依子形狀紀錄建立
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayList<Shape>[] childLists = new ArrayList[shapeCount];
+        for (int i = 0; i < childRecords.length; i += CHILD_RECORD) {
+            int parent = childRecords[i];
+            if (childLists[parent] == null) childLists[parent] = new ArrayList<>();
+        }
+
+        Shape[] shapes = new Shape[shapeCount];
+        for (int i = 0; i < shapeCount; i++) {
+            int r = i * SHAPE_RECORD;
+            String type = strings[shapeRecords[r + 3]];
+            ArrayList<Shape> children = childLists[i];
+            if (children == null && type.equals("composite")) children = new ArrayList<>();
+            Shape shape = new Shape(type, shapeRecords[r + 4], shapeRecords[r + 5],
+                shapeRecords[r + 6], shapeRecords[r + 7], children);
+            if (shapeRecords[r + 8] != NO_LABEL) {
+                shape.label = new ShapeLabel(strings[shapeRecords[r + 8]], strings[shapeRecords[r + 9]],
+                    LabelLayout.color(shapeRecords[r + 10]), shapeRecords[r + 11]);
+            }
+            shape.id = shapeRecords[r];
+            shape.z = ((long) shapeRecords[r + 1] << 32) | (shapeRecords[r + 2] & 0xffffffffL);
+            shapes[i] = shape;
+        }
+
+        for (int i = 0; i < childRecords.length; i += CHILD_RECORD) {
+            Shape parent = shapes[childRecords[i]];
+            Shape child = shapes[childRecords[i + 1]];
+            // 只有 composite 能有子形狀
+            if (child.parent != null || child == parent || !parent.type.equals("composite")) {
+                throw new IOException("圖表檔案的組合關係已損毀");
+            }
+            parent.children.add(child);
+            child.parent = parent;
+        }
+
+        ArrayList<Shape> topShapes = new ArrayList<>(topCount);
+        boolean[] isTop = new boolean[shapeCount];
+        for (int i = 0; i < topCount; i++) {
+            Shape shape = shapes[topRecords[i]];
+            if (shape.parent != null || isTop[topRecords[i]]) throw new IOException("圖表檔案的組合關係已損毀");
+            // 最上層形狀依 z 由下到上儲存，z 不可重複
+            if (i > 0 && shape.z <= topShapes.get(i - 1).z) throw new IOException("圖表檔案的組合關係已損毀");
+            isTop[topRecords[i]] = true;
+            topShapes.add(shape);
+        }
+        // 每個形狀只有一個上層，從不重複的最上層形狀走訪必定結束，且每個形狀最多走到一次；
+        // 還需走到所有形狀，否則有子形狀紀錄形成不屬於任何最上層形狀的環
+        if (countShapes(topShapes) != shapeCount) {
+            throw new IOException("圖表檔案的組合關係已損毀");
+        }
+
+        ArrayList<Link> links = new ArrayList<>(linkCount);
+        for (int i = 0; i < linkCount; i++) {
+            int r = i * LINK_RECORD;
+            Link link = new Link(strings[linkRecords[r + 1]], shapes[linkRecords[r + 2]], shapes[linkRecords[r + 3]],
+                linkRecords[r + 4], linkRecords[r + 5], linkRecords[r + 6], linkRecords[r + 7]);
+            link.id = linkRecords[r];
+            links.add(link);
+        }
+
+        canvas.setDiagram(topShapes, links);
+    }
+
+    // 依序讀取唯讀對映的檔案。對映一次最多 MAP_WINDOW 位元組，讀到目前的範圍以外時對映下一段；
+    // 讀出的內容都複製到陣列與字串中。呼叫端需先以 remaining 確認檔案還有足夠的內容
+    private static final class MappedInput {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        private long position() {
+            return window == null ? 0 : windowStart + window.position();
+        }
+
+        // 確保目前的對映從讀取位置起至少還有 bytes 個位元組
+        private void require(int bytes) throws IOException {
+            if (window != null && window.remaining() >= bytes) return;
+            long start = position();
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Math.max(bytes, MAP_WINDOW)));
+            windowStart = start;
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return window.getInt();
+        }
+
+        String getString(int length) throws IOException {
+            require(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void getInts(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(4);
+                int count = Math.min(values.length - offset, window.remaining() / 4);
+                window.asIntBuffer().get(values, offset, count);
+                window.position(window.position() + count * 4);
+                offset += count;
+            }
+        }
+    }
+
+    // 計算最上層形狀與所有子孫的數量
+    private static int countShapes(List<Shape> topShapes) {
+        ArrayDeque<Shape> pending = new ArrayDeque<>(topShapes);
+        int count = 0;
+        while (!pending.isEmpty()) {
+            Shape shape = pending.pop();
+            count++;
+            if (shape.isComposite()) pending.addAll(shape.children);
+        }
+        return count;
+    }
+
+    private static void collectShapes(Shape shape, ArrayList<Shape> allShapes, IdentityHashMap<Shape, Integer> indices) {
+        indices.put(shape, allShapes.size());
+        allShapes.add(shape);
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                collectShapes(child, allShapes, indices);
+            }
+        }
+    }
+
+    private static void intern(String s, ArrayList<String> strings, HashMap<String, Integer> stringIndices) {
+        if (!stringIndices.containsKey(s)) {
+            stringIndices.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+}
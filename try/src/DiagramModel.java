@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// 圖表內容的修改介面：DiagramFile 的載入與儲存、EditJournal 的重播都只透過它操作圖表。
+// CanvasPanel 在 EDT 上實作並同時維護索引、覆蓋計數與復原紀錄；
+// ReplayDiagram 只保存形狀與連線，供背景執行緒壓縮日誌時使用
+interface DiagramModel {
+    // 最上層形狀依 z 由下到上的快照
+    List<Shape> getShapes();
+
+    // 依編號排列的連線
+    List<Link> getLinks();
+
+    // 以載入的圖表取代目前內容；topShapes 依 z 由小到大排列，子形狀的 parent 需已設定
+    void setDiagram(List<Shape> topShapes, List<Link> newLinks);
+
+    // 以指定的編號與堆疊順序建立形狀；z 需大於所有現有形狀
+    Shape addShape(String type, int x, int y, int id, long z);
+
+    Link addLink(String type, Shape start, Shape end, int startX, int startY, int endX, int endY, int id);
+
+    // 平移最上層的形狀，端點在它上面的連線跟著移動
+    void translateShape(Shape shape, int deltaX, int deltaY);
+
+    // 把最上層形狀的 z 改為 z（不可與其他形狀相同）
+    void restackShape(Shape shape, long z);
+
+    // 將最上層的形狀組合成一個新的 composite，以 z 放在最上層
+    Shape groupShapes(ArrayList<Shape> children, int id, long z);
+
+    // 拆開最上層的 composite，子形狀依序以 firstZ、firstZ + 1 ... 加到最上層
+    void ungroupShape(Shape composite, long firstZ);
+
+    void setLabel(Shape shape, ShapeLabel label);
+
+    // 套用復原、重做或日誌中的目標狀態
+    void applyHistoryStep(EditHistory.Step step);
+}
@@ -0,0 +1,142 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+// 把圖表輸出成 SVG：繪製順序、顏色、箭頭幾何與標籤位置都與 CanvasPanel 的靜態圖層相同，
+// 座標以畫布座標表示，viewBox 為整張圖表的範圍。內容邊走訪邊寫出，不在記憶體中組成整份文件
+class DiagramSvg {
+    private DiagramSvg() {
+    }
+
+    public static void write(CanvasPanel canvas, Writer out) throws IOException {
+        List<Shape> shapes = canvas.getShapes();
+        List<Link> links = canvas.getLinks();
+        Rectangle bounds = canvas.getDiagramBounds();
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + bounds.width + "\" height=\"" + bounds.height
+            + "\" viewBox=\"" + bounds.x + " " + bounds.y + " " + bounds.width + " " + bounds.height + "\">\n");
+        out.write("<rect x=\"" + bounds.x + "\" y=\"" + bounds.y + "\" width=\"" + bounds.width + "\" height=\"" + bounds.height
+            + "\" fill=\"" + rgb(canvas.getBackground()) + "\"/>\n");
+
+        // 形狀，依 z 由下到上
+        out.write("<g fill=\"" + rgb(CanvasPanel.SHAPE_COLOR) + "\">\n");
+        for (Shape shape : shapes) {
+            writeShape(out, shape, 0, 0);
+        }
+        out.write("</g>\n");
+
+        // 連線，與 CanvasPanel.drawConnections 相同逐條畫出線段、箭頭與端點，後畫的蓋在先畫的上面
+        int size = CanvasPanel.CONTROL_POINT_SIZE, half = size / 2;
+        String endpointFill = fill(CanvasPanel.CONTROL_POINT_COLOR);
+        out.write("<g stroke=\"#000000\" stroke-width=\"" + CanvasPanel.LINK_STROKE.getLineWidth()
+            + "\" stroke-linecap=\"round\" stroke-linejoin=\"round\" fill=\"none\">\n");
+        int[] xPoints = new int[4], yPoints = new int[4];
+        for (Link link : links) {
+            out.write("<line x1=\"" + link.startX + "\" y1=\"" + link.startY + "\" x2=\"" + link.endX + "\" y2=\"" + link.endY + "\"/>\n");
+            int style = CanvasPanel.headStyle(link.type);
+            CanvasPanel.computeArrowHead(link.startX, link.startY, link.endX, link.endY, style, xPoints, yPoints);
+            if (style == CanvasPanel.HEAD_OPEN) {
+                out.write("<polyline points=\"" + points(xPoints, yPoints, new int[] {1, 0, 2}) + "\"/>\n");
+            } else if (style == CanvasPanel.HEAD_FILLED) {
+                // 實心菱形只填色不描邊
+                out.write("<polygon fill=\"#000000\" stroke=\"none\" points=\"" + points(xPoints, yPoints, new int[] {0, 1, 2, 3}) + "\"/>\n");
+            } else if (style == CanvasPanel.HEAD_HOLLOW) {
+                out.write("<polygon fill=\"#ffffff\" points=\"" + points(xPoints, yPoints, new int[] {0, 1, 2}) + "\"/>\n");
+            }
+            out.write("<rect x=\"" + (link.startX - half) + "\" y=\"" + (link.startY - half) + "\" width=\"" + size + "\" height=\"" + size
+                + "\" stroke=\"none\" " + endpointFill + "/>\n");
+            out.write("<rect x=\"" + (link.endX - half) + "\" y=\"" + (link.endY - half) + "\" width=\"" + size + "\" height=\"" + size
+                + "\" stroke=\"none\" " + endpointFill + "/>\n");
+        }
+        out.write("</g>\n");
+
+        // 標籤；文字位置以 Java 字體量測，與 PNG 輸出一致
+        Graphics g = LabelLayout.measuringGraphics();
+        for (Shape shape : shapes) {
+            if (shape.label != null && !shape.isComposite()) {
+                writeLabel(out, g, shape);
+            }
+        }
+        g.dispose();
+
+        out.write("</svg>\n");
+    }
+
+    private static void writeShape(Writer out, Shape shape, int originX, int originY) throws IOException {
+        int x = originX + shape.x, y = originY + shape.y;
+        if (shape.type.equals("rect")) {
+            out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + shape.width + "\" height=\"" + shape.height + "\"/>\n");
+        } else if (shape.type.equals("oval")) {
+            out.write(ellipse(x, y, shape.width, shape.height, "") + "\n");
+        } else if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                writeShape(out, child, x, y);
+            }
+        }
+    }
+
+    private static void writeLabel(Writer out, Graphics g, Shape shape) throws IOException {
+        ShapeLabel label = shape.label;
+        LabelLayout layout = LabelLayout.of(label);
+        int labelX = shape.x + (shape.width - LabelLayout.WIDTH) / 2;
+        int labelY = shape.y + (shape.height - LabelLayout.HEIGHT) / 2;
+
+        if (label.shape.equalsIgnoreCase("rect")) {
+            out.write("<rect x=\"" + labelX + "\" y=\"" + labelY + "\" width=\"" + LabelLayout.WIDTH + "\" height=\"" + LabelLayout.HEIGHT
+                + "\" " + fill(layout.color) + "/>\n");
+        } else if (label.shape.equalsIgnoreCase("oval")) {
+            out.write(ellipse(labelX, labelY, LabelLayout.WIDTH, LabelLayout.HEIGHT, " " + fill(layout.color)) + "\n");
+        }
+        out.write("<text x=\"" + (labelX + layout.textX(g)) + "\" y=\"" + (labelY + layout.textY(g))
+            + "\" font-family=\"sans-serif\" font-size=\"" + layout.font.getSize() + "\" fill=\"#000000\">"
+            + escape(label.text) + "</text>\n");
+    }
+
+    // Graphics.fillOval 的外接矩形換成 SVG 的圓心與半徑
+    private static String ellipse(int x, int y, int width, int height, String attributes) {
+        return "<ellipse cx=\"" + (x + width / 2.0) + "\" cy=\"" + (y + height / 2.0)
+            + "\" rx=\"" + (width / 2.0) + "\" ry=\"" + (height / 2.0) + "\"" + attributes + "/>";
+    }
+
+    private static String points(int[] xPoints, int[] yPoints, int[] order) {
+        StringBuilder sb = new StringBuilder();
+        for (int i : order) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(xPoints[i]).append(',').append(yPoints[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String fill(Color color) {
+        String attribute = "fill=\"" + rgb(color) + "\"";
+        if (color.getAlpha() < 255) {
+            attribute += " fill-opacity=\"" + Math.round(color.getAlpha() / 255.0 * 1000) / 1000.0 + "\"";
+        }
+        return attribute;
+    }
+
+    private static String rgb(Color color) {
+        return String.format("#%06x", color.getRGB() & 0xffffff);
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                default:
+                    // XML 不允許大部分的控制字元
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// 復原 / 重做紀錄。每個版本是兩個以編號為鍵的持久化映射（形狀狀態與連線狀態），
+// 提交一次編輯只需替換被修改的項目，相鄰版本共用其餘節點，成本為 O(修改數 × log n)。
+// 復原或重做時比較相鄰兩個版本，只回傳不同的項目交給 CanvasPanel 套用。
+// 保留的版本數受記憶體預算限制，超出時捨棄最舊的版本。
+class EditHistory {
+    // 形狀的不可變狀態；present 為 false 表示此版本中形狀不在圖表上。
+    // 位置與 Shape 相同：最上層形狀為畫布座標，子形狀相對於 parent
+    static final class ShapeState {
+        final Shape shape;
+        final boolean present;
+        final int x, y;
+        final long z;
+        final Shape parent;
+        final ShapeLabel label;
+
+        ShapeState(Shape shape, boolean present, int x, int y, long z, Shape parent, ShapeLabel label) {
+            this.shape = shape;
+            this.present = present;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.parent = parent;
+            this.label = label;
+        }
+
+        static ShapeState absent(Shape shape) {
+            return new ShapeState(shape, false, shape.x, shape.y, shape.z, null, shape.label);
+        }
+    }
+
+    // 連線的不可變狀態；present 為 false 表示此版本中沒有這條連線
+    static final class LinkState {
+        final Link link;
+        final boolean present;
+        final int startX, startY, endX, endY;
+
+        LinkState(Link link, boolean present, int startX, int startY, int endX, int endY) {
+            this.link = link;
+            this.present = present;
+            this.startX = startX;
+            this.startY = startY;
+            this.endX = endX;
+            this.endY = endY;
+        }
+
+        static LinkState absent(Link link) {
+            return new LinkState(link, false, link.startX, link.startY, link.endX, link.endY);
+        }
+    }
+
+    // 一次復原或重做需要套用的目標狀態
+    static final class Step {
+        final ArrayList<ShapeState> shapes = new ArrayList<>();
+        final ArrayList<LinkState> links = new ArrayList<>();
+    }
+
+    private static final class Version {
+        final PersistentIntMap<ShapeState> shapes;
+        final PersistentIntMap<LinkState> links;
+        // 建立此版本時新配置的記憶體（估計值）
+        final long cost;
+
+        Version(PersistentIntMap<ShapeState> shapes, PersistentIntMap<LinkState> links, long cost) {
+            this.shapes = shapes;
+            this.links = links;
+            this.cost = cost;
+        }
+    }
+
+    // 粗估一個狀態物件的大小
+    private static final int STATE_BYTES = 48;
+
+    private final ArrayDeque<Version> undoStack = new ArrayDeque<>();
+    private final ArrayDeque<Version> redoStack = new ArrayDeque<>();
+    private Version current = new Version(PersistentIntMap.empty(), PersistentIntMap.empty(), 0);
+    private long budget;
+    private long used = 0;
+
+    EditHistory(long budget) {
+        this.budget = budget;
+    }
+
+    void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    // 清除所有紀錄，以目前圖表的狀態作為新的起點
+    void reset(Collection<ShapeState> shapeStates, Collection<LinkState> linkStates) {
+        undoStack.clear();
+        redoStack.clear();
+        used = 0;
+        current = new Version(PersistentIntMap.empty(), PersistentIntMap.empty(), 0);
+        Version base = apply(shapeStates, linkStates);
+        // 起點代表圖表本身而不是編輯紀錄，不計入預算
+        current = new Version(base.shapes, base.links, 0);
+    }
+
+    // 提交一次編輯：記錄被修改項目的新狀態，並清除重做紀錄
+    void commit(Collection<ShapeState> shapeStates, Collection<LinkState> linkStates) {
+        if (shapeStates.isEmpty() && linkStates.isEmpty()) return;
+
+        undoStack.push(current);
+        current = apply(shapeStates, linkStates);
+        used += current.cost;
+
+        for (Version version : redoStack) {
+            used -= version.cost;
+        }
+        redoStack.clear();
+        trim();
+    }
+
+    // 回到上一個版本，回傳需要套用的目標狀態；沒有可復原的版本時回傳 null
+    Step undo() {
+        if (undoStack.isEmpty()) return null;
+        Version target = undoStack.pop();
+        Step step = diff(current, target);
+        redoStack.push(current);
+        current = target;
+        return step;
+    }
+
+    Step redo() {
+        if (redoStack.isEmpty()) return null;
+        Version target = redoStack.pop();
+        Step step = diff(current, target);
+        undoStack.push(current);
+        current = target;
+        return step;
+    }
+
+    private Version apply(Collection<ShapeState> shapeStates, Collection<LinkState> linkStates) {
+        PersistentIntMap<ShapeState> shapes = current.shapes;
+        PersistentIntMap<LinkState> links = current.links;
+        for (ShapeState state : shapeStates) {
+            shapes = shapes.put(state.shape.id, state);
+        }
+        for (LinkState state : linkStates) {
+            links = links.put(state.link.id, state);
+        }
+        long cost = (long) shapeStates.size() * (shapes.depth() * PersistentIntMap.NODE_BYTES + STATE_BYTES)
+                  + (long) linkStates.size() * (links.depth() * PersistentIntMap.NODE_BYTES + STATE_BYTES);
+        return new Version(shapes, links, cost);
+    }
+
+    private static Step diff(Version from, Version to) {
+        Step step = new Step();
+        PersistentIntMap.diff(from.shapes, to.shapes, (id, before, after) ->
+            step.shapes.add(after != null ? after : ShapeState.absent(before.shape)));
+        PersistentIntMap.diff(from.links, to.links, (id, before, after) ->
+            step.links.add(after != null ? after : LinkState.absent(before.link)));
+        return step;
+    }
+
+    // 超出預算時從最舊的版本開始捨棄，但至少保留一步復原
+    private void trim() {
+        while (used > budget && undoStack.size() > 1) {
+            used -= undoStack.removeLast().cost;
+        }
+    }
+}
@@ -0,0 +1,735 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+// 編輯日誌：CanvasPanel 的每個修改寫成一筆小型二進位紀錄。
+// 紀錄先累積在記憶體，由背景執行緒批次寫入日誌檔，日誌過大時再壓縮成快照，
+// 事件分派執行緒（EDT）上只做記憶體複製。
+//
+// 目錄內容：
+//   snapshot-<世代>.wfd  以 DiagramFile 格式儲存的快照（不存在表示空白圖表）
+//   journal              標頭 (MAGIC, VERSION, 世代)，之後每筆為 int 長度 + 紀錄內容，接在同世代的快照之後重播
+//   clean-exit           使用者正常結束時留下的標記；存在時下次開啟不還原，從空白圖表開始
+//   lock                 開啟期間以檔案鎖鎖住，同一個目錄同時只能由一個編輯器使用
+// 壓縮時先寫好新世代的快照，再以新標頭取代日誌，最後刪除舊快照；任何一步中斷都還能以舊世代還原。
+class EditJournal {
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_MOVE = 2;
+    private static final byte OP_LINK = 3;
+    private static final byte OP_GROUP = 4;
+    private static final byte OP_UNGROUP = 5;
+    private static final byte OP_LABEL = 6;
+    private static final byte OP_RESTACK = 7;
+    private static final byte OP_RESTORE = 8;
+    private static final byte OP_MOVE_GROUP = 9;
+
+    private static final int MAGIC = 0x57464a4c; // "WFJL"
+    // 第 2 版新增 OP_MOVE_GROUP；第 1 版的紀錄是它的子集，仍可重播
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int NONE = -1;
+    private static final long FLUSH_INTERVAL_MS = 500;
+    private static final long COMPACT_THRESHOLD = 8L << 20;
+    private static final String CLEAN_EXIT = "clean-exit";
+    private static final String LOCK = "lock";
+
+    // 本程式中已開啟的目錄。檔案鎖屬於整個程式，關閉同一個檔案的任何 channel 都會釋放它，
+    // 因此同一個程式中重複開啟時先以此拒絕，不去開啟鎖檔
+    private static final Set<Path> openDirectories = ConcurrentHashMap.newKeySet();
+
+    private final Path directory;
+    private final Path journalPath;
+    // 持有目錄的檔案鎖，關閉時釋放
+    private final FileChannel lockChannel;
+    // 正常結束時會先關閉一次，結束程式時的 shutdown hook 不再重複
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // 尚未寫入檔案的紀錄，EDT 與背景執行緒都會存取，以 this 同步
+    private byte[] pending = new byte[4096];
+    private int pendingSize = 0;
+    // 開啟檔案或清空圖表後，之前的紀錄都不再需要，日誌改從新世代開始；pendingOpen 為新快照，null 表示空白圖表
+    private boolean pendingRestart = false;
+    private File pendingOpen = null;
+    // 組裝單筆紀錄用的暫存區，只在 EDT 使用
+    private byte[] entry = new byte[256];
+    private int entrySize = 0;
+
+    // 以下只在背景執行緒使用
+    private final ScheduledExecutorService writer;
+    private byte[] flushBuffer = new byte[4096];
+    private int flushSize = 0;
+    // 尚未完成的重新開始，寫入失敗時留到下次再試
+    private boolean restartNeeded = false;
+    private File restartSnapshot = null;
+    private int generation;
+    private FileChannel journalChannel;
+    // 日誌超過此大小時壓縮；壓縮失敗後加大，不在每次寫入時重試
+    private long compactThreshold = COMPACT_THRESHOLD;
+
+    private EditJournal(Path directory, FileChannel lockChannel, int generation) {
+        this.directory = directory;
+        this.lockChannel = lockChannel;
+        this.journalPath = directory.resolve("journal");
+        this.generation = generation;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "EditJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        writer = executor;
+    }
+
+    // 開啟 directory 中的日誌並開始記錄 canvas 的修改。上次沒有正常結束而留下內容時，
+    // 以 confirmRecovery 詢問是否還原：還原則先重播到 canvas 中，否則捨棄，從空白圖表開始
+    public static EditJournal open(Path directory, CanvasPanel canvas, BooleanSupplier confirmRecovery) throws IOException {
+        Files.createDirectories(directory);
+        Path realDirectory = directory.toRealPath();
+        if (!openDirectories.add(realDirectory)) {
+            throw new IOException("自動儲存目錄已在使用中：" + directory);
+        }
+        try {
+            FileChannel lockChannel = lockDirectory(realDirectory);
+            try {
+                return open(realDirectory, lockChannel, canvas, confirmRecovery);
+            } catch (IOException | RuntimeException e) {
+                lockChannel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            openDirectories.remove(realDirectory);
+            throw e;
+        }
+    }
+
+    // 兩個編輯器同時使用同一個目錄會交錯附加並各自壓縮同一份日誌，第二個因此不啟用自動儲存
+    private static FileChannel lockDirectory(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // 同一個程式中已經開啟
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("自動儲存目錄已在使用中：" + directory);
+        }
+        return channel;
+    }
+
+    private static EditJournal open(Path directory, FileChannel lockChannel, CanvasPanel canvas,
+            BooleanSupplier confirmRecovery) throws IOException {
+        Path journalPath = directory.resolve("journal");
+
+        int generation = 0;
+        int version = VERSION;
+        long validLength = HEADER_SIZE;
+        boolean discard = false;
+        ByteBuffer data = null;
+        if (Files.exists(journalPath)) {
+            data = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+            // 無法辨識的日誌（例如其他版本寫的）不能重播，也不能覆寫或刪除其快照，留給使用者處理
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC) {
+                throw new IOException("無法辨識的編輯日誌，未變更目錄中的檔案：" + directory);
+            }
+            version = data.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("不支援的編輯日誌版本 " + version + "，未變更目錄中的檔案：" + directory);
+            }
+            generation = data.getInt();
+        }
+
+        // 標記只表示上次的結束方式，開啟後即移除
+        boolean cleanExit = Files.deleteIfExists(directory.resolve(CLEAN_EXIT));
+        if (data != null) {
+            boolean hasContent = data.hasRemaining() || Files.exists(snapshotPath(directory, generation));
+            if (hasContent && (cleanExit || !confirmRecovery.getAsBoolean())) {
+                discard = true;
+            } else if (hasContent) {
+                loadSnapshot(directory, generation, canvas);
+                try {
+                    validLength = replay(data, canvas);
+                } catch (RuntimeException e) {
+                    throw new IOException("編輯日誌無法還原", e);
+                }
+                // 還原的內容作為復原紀錄的起點
+                canvas.resetHistory();
+            }
+        }
+
+        EditJournal journal = new EditJournal(directory, lockChannel, generation);
+        journal.deleteStaleSnapshots();
+        if (discard) {
+            // 新世代沒有快照，即空白圖表；舊的快照隨之刪除
+            journal.startJournal(generation + 1);
+        } else if (Files.exists(journalPath) && validLength > HEADER_SIZE) {
+            // 截掉寫到一半的最後一筆紀錄，之後的紀錄才能接在完整的紀錄後面
+            journal.journalChannel = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+            journal.journalChannel.truncate(validLength);
+            if (version != VERSION) {
+                // 之後接上的紀錄可能用到新版的格式，舊版的編輯器不應再重播這份日誌
+                journal.journalChannel.write(ByteBuffer.allocate(4).putInt(0, VERSION), 4);
+            }
+            journal.journalChannel.position(validLength);
+        } else {
+            journal.startJournal(generation);
+        }
+
+        canvas.setJournal(journal);
+        journal.writer.scheduleWithFixedDelay(journal::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "EditJournal-shutdown"));
+        return journal;
+    }
+
+    // 以下記錄方法在 EDT 上由 CanvasPanel 呼叫
+    void recordCreate(Shape shape) {
+        beginEntry(OP_CREATE);
+        putInt(shape.id);
+        putString(shape.type);
+        putInt(shape.x);
+        putInt(shape.y);
+        putLong(shape.z);
+        endEntry();
+    }
+
+    void recordMove(Shape shape, int deltaX, int deltaY) {
+        beginEntry(OP_MOVE);
+        putInt(shape.id);
+        putInt(deltaX);
+        putInt(deltaY);
+        endEntry();
+    }
+
+    // 一起拖動的一組形狀每一格只寫一筆紀錄：位移、數量與各形狀的 id
+    void recordMoveGroup(Collection<Shape> shapes, int deltaX, int deltaY) {
+        beginEntry(OP_MOVE_GROUP);
+        putInt(deltaX);
+        putInt(deltaY);
+        putInt(shapes.size());
+        for (Shape shape : shapes) {
+            putInt(shape.id);
+        }
+        endEntry();
+    }
+
+    void recordLink(Link link) {
+        beginEntry(OP_LINK);
+        putInt(link.id);
+        putString(link.type);
+        putInt(link.start.id);
+        putInt(link.end.id);
+        putInt(link.startX);
+        putInt(link.startY);
+        putInt(link.endX);
+        putInt(link.endY);
+        endEntry();
+    }
+
+    void recordGroup(Shape composite) {
+        beginEntry(OP_GROUP);
+        putInt(composite.id);
+        putLong(composite.z);
+        putInt(composite.children.size());
+        for (Shape child : composite.children) {
+            putInt(child.id);
+        }
+        endEntry();
+    }
+
+    void recordUngroup(Shape composite) {
+        beginEntry(OP_UNGROUP);
+        putInt(composite.id);
+        putLong(composite.children.get(0).z);
+        endEntry();
+    }
+
+    void recordLabel(Shape shape) {
+        beginEntry(OP_LABEL);
+        putInt(shape.id);
+        putLabel(shape.label);
+        endEntry();
+    }
+
+    void recordRestack(Shape shape) {
+        beginEntry(OP_RESTACK);
+        putInt(shape.id);
+        putLong(shape.z);
+        endEntry();
+    }
+
+    // 復原或重做：記錄完整的目標狀態，使重播時即使形狀或連線不在快照中也能重建
+    void recordRestore(EditHistory.Step step) {
+        beginEntry(OP_RESTORE);
+        putInt(step.shapes.size());
+        for (EditHistory.ShapeState state : step.shapes) {
+            Shape shape = state.shape;
+            putInt(shape.id);
+            putInt(state.present ? 1 : 0);
+            putString(shape.type);
+            putInt(shape.width);
+            putInt(shape.height);
+            putInt(state.x);
+            putInt(state.y);
+            putLong(state.z);
+            putInt(state.parent != null ? state.parent.id : NONE);
+            putLabel(state.label);
+            if (shape.isComposite()) {
+                putInt(shape.children.size());
+                for (Shape child : shape.children) {
+                    putInt(child.id);
+                }
+            } else {
+                putInt(NONE);
+            }
+        }
+        putInt(step.links.size());
+        for (EditHistory.LinkState state : step.links) {
+            Link link = state.link;
+            putInt(link.id);
+            putInt(state.present ? 1 : 0);
+            putString(link.type);
+            putInt(link.start.id);
+            putInt(link.end.id);
+            putInt(state.startX);
+            putInt(state.startY);
+            putInt(state.endX);
+            putInt(state.endY);
+        }
+        endEntry();
+    }
+
+    // 開啟檔案後，該檔案即為新的快照，之前的紀錄都不再需要
+    void recordOpen(File file) {
+        restart(file);
+    }
+
+    // 清空圖表後，之前的紀錄都不再需要
+    void recordNew() {
+        restart(null);
+    }
+
+    private void restart(File snapshot) {
+        synchronized (this) {
+            pendingSize = 0;
+            pendingRestart = true;
+            pendingOpen = snapshot;
+        }
+        writer.execute(this::flush);
+    }
+
+    // 程式被中止時的收尾：寫出剩餘的紀錄，下次開啟時仍會詢問是否還原
+    void close() {
+        close(false);
+    }
+
+    // 停止背景執行緒並寫出剩餘的紀錄；cleanExit 表示使用者正常結束，下次開啟時不再還原
+    void close(boolean cleanExit) {
+        if (!closed.compareAndSet(false, true)) return;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            if (journalChannel != null) journalChannel.close();
+            if (cleanExit) Files.write(directory.resolve(CLEAN_EXIT), new byte[0]);
+        } catch (IOException e) {
+            System.err.println("無法關閉編輯日誌：" + e.getMessage());
+        } finally {
+            try {
+                lockChannel.close();
+            } catch (IOException e) {
+                System.err.println("無法釋放自動儲存目錄：" + e.getMessage());
+            }
+            openDirectories.remove(directory);
+        }
+    }
+
+    // 背景執行緒：與 EDT 交換緩衝區後，把累積的紀錄一次寫入日誌檔；鎖只在交換時持有
+    private void flush() {
+        synchronized (this) {
+            if (pendingRestart) {
+                // 之前的紀錄連同上次寫入失敗而留下的都捨棄
+                restartNeeded = true;
+                restartSnapshot = pendingOpen;
+                pendingRestart = false;
+                pendingOpen = null;
+                flushSize = 0;
+            }
+            if (pendingSize > 0) {
+                if (flushSize == 0) {
+                    byte[] swap = flushBuffer;
+                    flushBuffer = pending;
+                    flushSize = pendingSize;
+                    pending = swap;
+                } else {
+                    // 上次寫入失敗的紀錄還在，接在後面一起重試
+                    if (flushSize + pendingSize > flushBuffer.length) {
+                        flushBuffer = Arrays.copyOf(flushBuffer, flushSize + pendingSize);
+                    }
+                    System.arraycopy(pending, 0, flushBuffer, flushSize, pendingSize);
+                    flushSize += pendingSize;
+                }
+                pendingSize = 0;
+            }
+        }
+
+        long journalSize;
+        try {
+            if (restartNeeded) {
+                if (restartSnapshot != null) {
+                    Path temp = directory.resolve("snapshot.tmp");
+                    Files.copy(restartSnapshot.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(temp, snapshotPath(generation + 1), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                startJournal(generation + 1);
+                restartNeeded = false;
+                restartSnapshot = null;
+            }
+
+            if (flushSize == 0) return;
+            journalChannel.write(ByteBuffer.wrap(flushBuffer, 0, flushSize));
+            journalChannel.force(false);
+            flushSize = 0;
+            journalSize = journalChannel.size();
+        } catch (IOException | RuntimeException e) {
+            // 自動儲存失敗不應影響編輯，下次排程時再試
+            System.err.println("編輯日誌寫入失敗：" + e.getMessage());
+            return;
+        }
+
+        if (journalSize <= compactThreshold) return;
+        try {
+            compact();
+            compactThreshold = COMPACT_THRESHOLD;
+        } catch (IOException | RuntimeException e) {
+            // 紀錄本身已寫好，壓縮失敗只是日誌較大；等日誌再長一倍才重試，
+            // 以免每次寫入都重播一次整個日誌
+            System.err.println("編輯日誌壓縮失敗：" + e.getMessage());
+            compactThreshold = journalSize * 2;
+        }
+    }
+
+    private void compact() throws IOException {
+        // 在背景執行緒上以不含 Swing 元件的模型重播快照與日誌，不觸碰 EDT 上的模型
+        ReplayDiagram model = new ReplayDiagram();
+        loadSnapshot(directory, generation, model);
+        journalChannel.force(false);
+        replay(ByteBuffer.wrap(Files.readAllBytes(journalPath), HEADER_SIZE, (int) journalChannel.size() - HEADER_SIZE), model);
+
+        Path temp = directory.resolve("snapshot.tmp");
+        DiagramFile.save(model, temp.toFile());
+        Files.move(temp, snapshotPath(generation + 1), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        startJournal(generation + 1);
+    }
+
+    // 以新世代的空白日誌取代目前的日誌，再刪除不再需要的舊快照
+    private void startJournal(int newGeneration) throws IOException {
+        Path temp = directory.resolve("journal.tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(newGeneration).flip();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(header);
+            channel.force(true);
+        }
+        Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (journalChannel != null) journalChannel.close();
+        journalChannel = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        generation = newGeneration;
+        deleteStaleSnapshots();
+    }
+
+    private void deleteStaleSnapshots() throws IOException {
+        Path current = snapshotPath(generation);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "snapshot-*.wfd")) {
+            for (Path path : stream) {
+                if (!path.equals(current)) Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private Path snapshotPath(int generation) {
+        return snapshotPath(directory, generation);
+    }
+
+    private static Path snapshotPath(Path directory, int generation) {
+        return directory.resolve("snapshot-" + generation + ".wfd");
+    }
+
+    private static void loadSnapshot(Path directory, int generation, DiagramModel canvas) throws IOException {
+        Path snapshot = snapshotPath(directory, generation);
+        if (Files.exists(snapshot)) {
+            DiagramFile.load(canvas, snapshot.toFile());
+        }
+    }
+
+    // 將紀錄依序套用到 canvas；回傳最後一筆完整紀錄結束的位置，寫到一半的紀錄會被略過
+    private static long replay(ByteBuffer data, DiagramModel canvas) {
+        // 被拆開或復原移除的形狀與連線仍留在表中，之後的重做可能再用到
+        HashMap<Integer, Shape> shapesById = new HashMap<>();
+        HashMap<Integer, Link> linksById = new HashMap<>();
+        for (Shape shape : canvas.getShapes()) {
+            indexShape(shape, shapesById);
+        }
+        for (Link link : canvas.getLinks()) {
+            linksById.put(link.id, link);
+        }
+
+        while (data.remaining() >= 4) {
+            int length = data.getInt(data.position());
+            if (length <= 0 || data.remaining() - 4 < length) break;
+            int entryStart = data.position();
+            data.position(entryStart + 4);
+
+            byte op = data.get();
+            switch (op) {
+                case OP_CREATE: {
+                    int id = data.getInt();
+                    String type = getString(data);
+                    int x = data.getInt(), y = data.getInt();
+                    shapesById.put(id, canvas.addShape(type, x, y, id, data.getLong()));
+                    break;
+                }
+                case OP_MOVE: {
+                    Shape shape = shapesById.get(data.getInt());
+                    canvas.translateShape(shape, data.getInt(), data.getInt());
+                    break;
+                }
+                case OP_MOVE_GROUP: {
+                    // 逐一平移與一起平移的結果相同：每個連線端點只隨它所屬的形狀移動一次
+                    int deltaX = data.getInt(), deltaY = data.getInt();
+                    int count = data.getInt();
+                    for (int i = 0; i < count; i++) {
+                        canvas.translateShape(shapesById.get(data.getInt()), deltaX, deltaY);
+                    }
+                    break;
+                }
+                case OP_LINK: {
+                    int id = data.getInt();
+                    String type = getString(data);
+                    Shape start = shapesById.get(data.getInt());
+                    Shape end = shapesById.get(data.getInt());
+                    int startX = data.getInt(), startY = data.getInt(), endX = data.getInt(), endY = data.getInt();
+                    linksById.put(id, canvas.addLink(type, start, end, startX, startY, endX, endY, id));
+                    break;
+                }
+                case OP_GROUP: {
+                    int id = data.getInt();
+                    long z = data.getLong();
+                    int count = data.getInt();
+                    ArrayList<Shape> children = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        children.add(shapesById.get(data.getInt()));
+                    }
+                    shapesById.put(id, canvas.groupShapes(children, id, z));
+                    break;
+                }
+                case OP_UNGROUP: {
+                    Shape composite = shapesById.get(data.getInt());
+                    canvas.ungroupShape(composite, data.getLong());
+                    break;
+                }
+                case OP_LABEL: {
+                    Shape shape = shapesById.get(data.getInt());
+                    canvas.setLabel(shape, getLabel(data));
+                    break;
+                }
+                case OP_RESTACK: {
+                    Shape shape = shapesById.get(data.getInt());
+                    canvas.restackShape(shape, data.getLong());
+                    break;
+                }
+                case OP_RESTORE:
+                    canvas.applyHistoryStep(readStep(data, shapesById, linksById));
+                    break;
+                default:
+                    // 無法辨識的紀錄表示日誌已損毀，之後的內容不可信
+                    return entryStart;
+            }
+            data.position(entryStart + 4 + length);
+        }
+        return data.position();
+    }
+
+    private static EditHistory.Step readStep(ByteBuffer data, HashMap<Integer, Shape> shapesById, HashMap<Integer, Link> linksById) {
+        EditHistory.Step step = new EditHistory.Step();
+
+        // 先建立所有缺少的形狀，composite 的子形狀與上層可能在同一筆紀錄中
+        int shapeCount = data.getInt();
+        int[] parentIds = new int[shapeCount];
+        int[][] childIds = new int[shapeCount][];
+        ArrayList<Shape> recorded = new ArrayList<>(shapeCount);
+        boolean[] present = new boolean[shapeCount];
+        boolean[] created = new boolean[shapeCount];
+        int[] xs = new int[shapeCount], ys = new int[shapeCount];
+        long[] zs = new long[shapeCount];
+        ShapeLabel[] labels = new ShapeLabel[shapeCount];
+        for (int i = 0; i < shapeCount; i++) {
+            int id = data.getInt();
+            present[i] = data.getInt() != 0;
+            String type = getString(data);
+            int width = data.getInt(), height = data.getInt();
+            xs[i] = data.getInt();
+            ys[i] = data.getInt();
+            zs[i] = data.getLong();
+            parentIds[i] = data.getInt();
+            labels[i] = getLabel(data);
+            int childCount = data.getInt();
+            if (childCount != NONE) {
+                childIds[i] = new int[childCount];
+                for (int c = 0; c < childCount; c++) {
+                    childIds[i][c] = data.getInt();
+                }
+            }
+
+            // 日誌中的形狀編號已存在時沿用原物件，子形狀清單由物件本身維護
+            Shape shape = shapesById.get(id);
+            if (shape == null) {
+                shape = new Shape(type, xs[i], ys[i], width, height, childIds[i] != null ? new ArrayList<>() : null);
+                shape.id = id;
+                shapesById.put(id, shape);
+                created[i] = true;
+            }
+            recorded.add(shape);
+        }
+        for (int i = 0; i < shapeCount; i++) {
+            Shape shape = recorded.get(i);
+            if (created[i] && shape.isComposite()) {
+                for (int childId : childIds[i]) {
+                    shape.children.add(shapesById.get(childId));
+                }
+            }
+            Shape parent = parentIds[i] == NONE ? null : shapesById.get(parentIds[i]);
+            step.shapes.add(new EditHistory.ShapeState(shape, present[i], xs[i], ys[i], zs[i], parent, labels[i]));
+        }
+
+        int linkCount = data.getInt();
+        for (int i = 0; i < linkCount; i++) {
+            int id = data.getInt();
+            boolean linkPresent = data.getInt() != 0;
+            String type = getString(data);
+            Shape start = shapesById.get(data.getInt());
+            Shape end = shapesById.get(data.getInt());
+            int startX = data.getInt(), startY = data.getInt(), endX = data.getInt(), endY = data.getInt();
+            Link link = linksById.get(id);
+            if (link == null) {
+                link = new Link(type, start, end, startX, startY, endX, endY);
+                link.id = id;
+                linksById.put(id, link);
+            }
+            step.links.add(new EditHistory.LinkState(link, linkPresent, startX, startY, endX, endY));
+        }
+        return step;
+    }
+
+    private static void indexShape(Shape shape, HashMap<Integer, Shape> shapesById) {
+        shapesById.put(shape.id, shape);
+        if (shape.isComposite()) {
+            for (Shape child : shape.children) {
+                indexShape(child, shapesById);
+            }
+        }
+    }
+
+    private static ShapeLabel getLabel(ByteBuffer data) {
+        if (data.getInt() == 0) return null;
+        String text = getString(data);
+        String shape = getString(data);
+        return new ShapeLabel(text, shape, LabelLayout.color(data.getInt()), data.getInt());
+    }
+
+    private static String getString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 紀錄編碼：先寫到 entry，完成後連同長度一次搬進 pending
+    private void beginEntry(byte op) {
+        entrySize = 0;
+        ensureEntryCapacity(1);
+        entry[entrySize++] = op;
+    }
+
+    private void putInt(int value) {
+        ensureEntryCapacity(4);
+        entry[entrySize++] = (byte) (value >>> 24);
+        entry[entrySize++] = (byte) (value >>> 16);
+        entry[entrySize++] = (byte) (value >>> 8);
+        entry[entrySize++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    private void putLabel(ShapeLabel label) {
+        if (label == null) {
+            putInt(0);
+            return;
+        }
+        putInt(1);
+        putString(label.text);
+        putString(label.shape);
+        putInt(label.color.getRGB());
+        putInt(label.fontSize);
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        ensureEntryCapacity(bytes.length);
+        System.arraycopy(bytes, 0, entry, entrySize, bytes.length);
+        entrySize += bytes.length;
+    }
+
+    private void ensureEntryCapacity(int extra) {
+        if (entrySize + extra > entry.length) {
+            entry = Arrays.copyOf(entry, Math.max(entry.length * 2, entrySize + extra));
+        }
+    }
+
+    private synchronized void endEntry() {
+        int needed = pendingSize + 4 + entrySize;
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, needed));
+        }
+        pending[pendingSize++] = (byte) (entrySize >>> 24);
+        pending[pendingSize++] = (byte) (entrySize >>> 16);
+        pending[pendingSize++] = (byte) (entrySize >>> 8);
+        pending[pendingSize++] = (byte) entrySize;
+        System.arraycopy(entry, 0, pending, pendingSize, entrySize);
+        pendingSize += entrySize;
+    }
+}
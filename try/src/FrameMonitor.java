@@ -0,0 +1,187 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// 畫布的效能量測：記錄繪製各階段、滑鼠事件處理與連線更新的耗時，
+// 以及從輸入事件到畫面更新的延遲。每個階段保留最近 SAMPLES 筆，在畫布上以百分位數顯示。
+// 同一段時間也會發出 JFR 事件（workflow.CanvasSpan），錄製時可在 JDK Mission Control 中檢視。
+// 只在事件分派執行緒上使用，同一階段不會巢狀
+final class FrameMonitor {
+    static final int PAINT = 0, STATIC_LAYER = 1, DRAW_SHAPES = 2, DRAW_CONNECTIONS = 3, DRAW_LABELS = 4,
+                     MOUSE_PRESSED = 5, MOUSE_DRAGGED = 6, MOUSE_RELEASED = 7, UPDATE_LINKS = 8, INPUT_LATENCY = 9;
+    private static final String[] NAMES = {
+        "paint", "staticLayer", "drawShapes", "drawConnections", "drawLabels",
+        "mousePressed", "mouseDragged", "mouseReleased", "updateLinks", "inputToFrame"
+    };
+    private static final int PHASES = NAMES.length;
+    private static final int SAMPLES = 256;
+
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color BACKGROUND = new Color(0, 0, 0, 170);
+    private static final int PADDING = 6, MARGIN = 8;
+
+    @Name("workflow.CanvasSpan")
+    @Label("Canvas Span")
+    @Category({"Workflow Editor", "Canvas"})
+    @Description("繪製階段、滑鼠事件處理或連線更新的一段耗時")
+    static final class SpanEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    private static final EventType SPAN_TYPE = EventType.getEventType(SpanEvent.class);
+
+    // 每個階段的環狀緩衝區（奈秒）
+    private final long[][] samples = new long[PHASES][SAMPLES];
+    private final int[] counts = new int[PHASES];
+    private final int[] next = new int[PHASES];
+    private final long[] starts = new long[PHASES];
+    private final SpanEvent[] openEvents = new SpanEvent[PHASES];
+
+    // 正在處理的輸入事件開始的時間、最早一個延後處理的輸入事件的開始時間，
+    // 以及最早一個已要求重繪、尚未畫出的輸入事件的開始時間；0 表示沒有
+    private long lastInputStart = 0;
+    private long deferredInputStart = 0;
+    private long pendingInputStart = 0;
+
+    private boolean overlayVisible = false;
+    private final Rectangle overlayBounds = new Rectangle();
+
+    void start(int phase) {
+        starts[phase] = System.nanoTime();
+        if (SPAN_TYPE.isEnabled()) {
+            SpanEvent event = new SpanEvent();
+            event.begin();
+            openEvents[phase] = event;
+        }
+    }
+
+    void stop(int phase) {
+        record(phase, System.nanoTime() - starts[phase]);
+        SpanEvent event = openEvents[phase];
+        if (event != null) {
+            openEvents[phase] = null;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = NAMES[phase];
+                event.commit();
+            }
+        }
+    }
+
+    // 輸入事件開始處理，與 stop 不同的是結束時不記錄耗時，而是等待對應的畫面畫出
+    void inputStarted() {
+        lastInputStart = System.nanoTime();
+    }
+
+    void inputFinished() {
+        lastInputStart = 0;
+    }
+
+    // 輸入事件被合併到之後的畫面更新，延遲從這個事件算起
+    void inputDeferred() {
+        if (deferredInputStart == 0) deferredInputStart = lastInputStart;
+    }
+
+    // 要求重繪；若是由輸入事件引起，延遲從該批輸入中最早的事件算起
+    void frameRequested() {
+        long inputStart = deferredInputStart != 0 ? deferredInputStart : lastInputStart;
+        deferredInputStart = 0;
+        if (pendingInputStart == 0) pendingInputStart = inputStart;
+    }
+
+    // 一次繪製完成，結束 PAINT 階段；只重繪統計面板本身的繪製不計入
+    void frameFinished(Rectangle clip) {
+        if (clip != null && overlayVisible && overlayBounds.contains(clip)) {
+            openEvents[PAINT] = null;
+            return;
+        }
+        stop(PAINT);
+        if (pendingInputStart != 0) {
+            record(INPUT_LATENCY, System.nanoTime() - pendingInputStart);
+            pendingInputStart = 0;
+        }
+    }
+
+    private void record(int phase, long nanos) {
+        samples[phase][next[phase]] = nanos;
+        next[phase] = (next[phase] + 1) % SAMPLES;
+        if (counts[phase] < SAMPLES) counts[phase]++;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(next, 0);
+        lastInputStart = deferredInputStart = pendingInputStart = 0;
+    }
+
+    boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+    }
+
+    // 統計面板在元件上的位置（螢幕座標），尚未繪製過時為空
+    Rectangle getOverlayBounds() {
+        return overlayBounds;
+    }
+
+    // 以螢幕座標在元件左上角繪製統計面板：每個階段的樣本數與 p50 / p95 / p99 / 最大值（毫秒）
+    void drawOverlay(Graphics2D g) {
+        g.setFont(FONT);
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+
+        String[] lines = new String[PHASES + 1];
+        lines[0] = String.format("%-16s %5s %7s %7s %7s %7s", "phase (ms)", "n", "p50", "p95", "p99", "max");
+        long[] sorted = new long[SAMPLES];
+        for (int phase = 0; phase < PHASES; phase++) {
+            int count = counts[phase];
+            if (count == 0) {
+                lines[phase + 1] = String.format("%-16s %5d", NAMES[phase], 0);
+                continue;
+            }
+            System.arraycopy(samples[phase], 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            lines[phase + 1] = String.format("%-16s %5d %7.2f %7.2f %7.2f %7.2f", NAMES[phase], count,
+                millis(percentile(sorted, count, 50)), millis(percentile(sorted, count, 95)),
+                millis(percentile(sorted, count, 99)), millis(sorted[count - 1]));
+        }
+
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        overlayBounds.setBounds(MARGIN, MARGIN, width + PADDING * 2, lineHeight * lines.length + PADDING * 2);
+
+        g.setColor(BACKGROUND);
+        g.fillRect(overlayBounds.x, overlayBounds.y, overlayBounds.width, overlayBounds.height);
+        g.setColor(Color.WHITE);
+        int baseline = overlayBounds.y + PADDING + fm.getAscent();
+        for (String line : lines) {
+            g.drawString(line, overlayBounds.x + PADDING, baseline);
+            baseline += lineHeight;
+        }
+    }
+
+    // 最近排名法：排序後第 ceil(p% × n) 筆
+    private static long percentile(long[] sorted, int count, int percent) {
+        int rank = (count * percent + 99) / 100;
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,148 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 標籤的排版快取：內容相同（文字、字體大小、標籤形狀、顏色）的標籤共用一份排版，
+// 其中保存共用的 Font 與 Color，以及文字寬度與文字相對於標籤框的位置。
+// 量測以不含縮放的 FontRenderContext 進行，縮放時不需重新量測，
+// 只有文字的反鋸齒或小數字寬設定改變時才重新量測。
+final class LabelLayout {
+    static final int WIDTH = 80;
+    static final int HEIGHT = 60;
+
+    // 不同的標籤內容超過此數量時清空快取，避免無限制成長
+    private static final int MAX_CACHED = 4096;
+
+    private static final ConcurrentHashMap<ShapeLabel, LabelLayout> LAYOUTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Font> FONTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Color> COLORS = new ConcurrentHashMap<>();
+
+    final String text;
+    final Font font;
+    final Color color;
+    private final boolean rect, oval;
+
+    // 最近一次量測的結果；以不可變物件整個替換，多執行緒繪製時不需加鎖
+    private volatile Metrics metrics;
+
+    private static final class Metrics {
+        // 量測用的 FontRenderContext：繪製目標的文字設定，不含轉換
+        final FontRenderContext frc;
+        final int textWidth;
+        // 文字基線相對於標籤框左上角的位置
+        final int textX, textY;
+
+        Metrics(FontRenderContext frc, int textWidth, int textX, int textY) {
+            this.frc = frc;
+            this.textWidth = textWidth;
+            this.textX = textX;
+            this.textY = textY;
+        }
+    }
+
+    private LabelLayout(ShapeLabel label) {
+        this.text = label.text;
+        this.font = font(label.fontSize);
+        this.color = color(label.color.getRGB());
+        this.rect = label.shape.equalsIgnoreCase("rect");
+        this.oval = label.shape.equalsIgnoreCase("oval");
+    }
+
+    // 標籤本身不可變，取得的排版會存在標籤上，之後的繪製不需再查表
+    static LabelLayout of(ShapeLabel label) {
+        LabelLayout layout = label.layout;
+        if (layout == null) {
+            if (LAYOUTS.size() >= MAX_CACHED) LAYOUTS.clear();
+            layout = LAYOUTS.computeIfAbsent(label, LabelLayout::new);
+            label.layout = layout;
+        }
+        return layout;
+    }
+
+    static Font font(int size) {
+        return FONTS.computeIfAbsent(size, s -> new Font("SansSerif", Font.PLAIN, s));
+    }
+
+    static Color color(int argb) {
+        return COLORS.computeIfAbsent(argb, c -> new Color(c, true));
+    }
+
+    // 以形狀的位置與大小繪製標籤，標籤框置中於形狀
+    void draw(Graphics g, int x, int y, int w, int h) {
+        Metrics m = measure(g);
+        int labelX = x + (w - WIDTH) / 2;
+        int labelY = y + (h - HEIGHT) / 2;
+
+        g.setColor(color);
+        if (rect) {
+            g.fillRect(labelX, labelY, WIDTH, HEIGHT);
+        } else if (oval) {
+            g.fillOval(labelX, labelY, WIDTH, HEIGHT);
+        }
+
+        g.setColor(Color.BLACK);
+        g.setFont(font);
+        g.drawString(text, labelX + m.textX, labelY + m.textY);
+    }
+
+    // 最近一次量測的文字寬度，尚未繪製過時回傳 -1
+    int measuredTextWidth() {
+        Metrics m = metrics;
+        return m == null ? -1 : m.textWidth;
+    }
+
+    // 文字基線相對於標籤框左上角的位置
+    int textX(Graphics g) {
+        return measure(g).textX;
+    }
+
+    int textY(Graphics g) {
+        return measure(g).textY;
+    }
+
+    // 不繪製、只量測標籤時使用的 Graphics，文字設定與繪製圖表時相同，因此共用同一份排版。
+    // 用完後由呼叫者 dispose
+    static Graphics2D measuringGraphics() {
+        Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        return g;
+    }
+
+    // 標籤框與文字在 g 上合起來的寬度
+    int width(Graphics g) {
+        return Math.max(WIDTH, measure(g).textWidth);
+    }
+
+    // 不量測文字時寬度的上限（每個字元不超過兩個字寬），用來先排除離可見範圍太遠的標籤
+    int widthUpperBound() {
+        return Math.max(WIDTH, text.length() * font.getSize() * 2);
+    }
+
+    // 文字以標籤框的中線為基準，字體較大時可能超出標籤框上下
+    int height() {
+        return Math.max(HEIGHT, font.getSize() * 2);
+    }
+
+    private Metrics measure(Graphics g) {
+        FontRenderContext frc = ((Graphics2D) g).getFontRenderContext();
+        Metrics m = metrics;
+        if (m == null || !m.frc.getAntiAliasingHint().equals(frc.getAntiAliasingHint())
+                || !m.frc.getFractionalMetricsHint().equals(frc.getFractionalMetricsHint())) {
+            FontRenderContext layoutFrc = new FontRenderContext(null, frc.getAntiAliasingHint(), frc.getFractionalMetricsHint());
+            int textWidth = (int) Math.round(font.getStringBounds(text, layoutFrc).getWidth());
+            // 上升與下降高度的進位方式與 FontMetrics 相同
+            LineMetrics lm = font.getLineMetrics(text, layoutFrc);
+            int ascent = (int) (lm.getAscent() + 0.95f);
+            int descent = (int) (lm.getDescent() + 0.95f);
+            m = new Metrics(layoutFrc, textWidth, (WIDTH - textWidth) / 2, (HEIGHT + ascent - descent) / 2);
+            metrics = m;
+        }
+        return m;
+    }
+}
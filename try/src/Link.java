@@ -0,0 +1,82 @@
+import java.awt.geom.Path2D;
+
+// 連線模型：連接兩個形狀的控制點
+class Link {
+    // 穩定的編號，由 CanvasPanel 指定，供檔案、編輯日誌與復原紀錄引用
+    int id;
+    final String type;
+    final Shape start, end;
+    int startX, startY, endX, endY;
+
+    // 箭頭頂點與繪製路徑的快取以及計算時的端點，端點改變後由 CanvasPanel 重新計算。
+    // outline 以連線筆觸描邊：線段，開放箭頭連同兩條箭頭線；head 為需要填色的箭頭
+    int headStyle;
+    int[] headX, headY;
+    Path2D.Float outline, head;
+    int headStartX, headStartY, headEndX, headEndY;
+
+    // 端點移動後尚未更新到 CanvasPanel 的連線索引
+    boolean indexStale;
+
+    Link(String type, Shape start, Shape end, int startX, int startY, int endX, int endY) {
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+    }
+
+    // 是否已登記在端點形狀上，也就是是否在圖表中
+    boolean isAttached() {
+        return start.links.contains(this);
+    }
+
+    // 登記到兩端及其上層 composite，共同的上層只登記一次
+    void attach() {
+        for (Shape s = start; s != null; s = s.parent) {
+            s.links.add(this);
+        }
+        for (Shape s = end; s != null; s = s.parent) {
+            if (!start.isWithin(s)) s.links.add(this);
+        }
+    }
+
+    void detach() {
+        for (Shape s = start; s != null; s = s.parent) {
+            s.links.remove(this);
+        }
+        for (Shape s = end; s != null; s = s.parent) {
+            if (!start.isWithin(s)) s.links.remove(this);
+        }
+    }
+
+    // 端點所在的形狀平移了 (deltaX, deltaY)，shapeX / shapeY 為它移動後的畫布座標。
+    // 以原端點隨之平移的位置找最近的控制點，端點因此留在同一個控制點上，
+    // 結果與一次移動被拆成幾步（例如拖曳時合併了幾個滑鼠事件）無關
+    void moveEndpoint(boolean atStart, Shape shape, int shapeX, int shapeY, int deltaX, int deltaY) {
+        int origX = (atStart ? startX : endX) + deltaX;
+        int origY = (atStart ? startY : endY) + deltaY;
+
+        int[] offsets = shape.controlPointOffsets();
+        int nearest = 0;
+        long minDistance = Long.MAX_VALUE;
+        for (int i = 0; i < offsets.length; i += 2) {
+            long dx = (long) shapeX + offsets[i] - origX, dy = (long) shapeY + offsets[i + 1] - origY;
+            long dist = dx * dx + dy * dy;
+            if (dist < minDistance) {
+                minDistance = dist;
+                nearest = i;
+            }
+        }
+
+        if (atStart) {
+            startX = shapeX + offsets[nearest];
+            startY = shapeY + offsets[nearest + 1];
+        } else {
+            endX = shapeX + offsets[nearest];
+            endY = shapeY + offsets[nearest + 1];
+        }
+    }
+}
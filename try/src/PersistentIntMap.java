@@ -0,0 +1,110 @@
+// 以非負 int 為鍵的不可變映射：32 分支的基數樹。
+// put 只複製從根到該鍵的路徑（O(log32 n) 個節點），其餘節點與舊版本共用，
+// 因此保留許多版本時只需付出每次修改的路徑成本；比較兩個版本時也可略過共用的子樹。
+final class PersistentIntMap<V> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    // 粗估每個節點的大小（物件標頭 + 32 個參考），供記憶體預算使用
+    static final int NODE_BYTES = 16 + WIDTH * 4;
+
+    private static final PersistentIntMap<Object> EMPTY = new PersistentIntMap<>(null, 0);
+
+    // 根節點涵蓋 [0, 1 << (shift + BITS)) 的鍵；葉節點（shift 為 0）直接存放值
+    private final Object[] root;
+    private final int shift;
+
+    interface DiffVisitor<V> {
+        // before 或 after 為 null 表示該版本中沒有這個鍵
+        void changed(int key, V before, V after);
+    }
+
+    private PersistentIntMap(Object[] root, int shift) {
+        this.root = root;
+        this.shift = shift;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (root == null || key < 0 || key >= capacity(shift)) return null;
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(key >>> level) & MASK];
+            if (node == null) return null;
+        }
+        return (V) node[key & MASK];
+    }
+
+    // 回傳加入（value 為 null 時為移除）後的新版本，原版本不變
+    PersistentIntMap<V> put(int key, V value) {
+        if (key < 0) throw new IllegalArgumentException("key must not be negative: " + key);
+        if (get(key) == value) return this;
+
+        Object[] newRoot = root;
+        int newShift = shift;
+        while (key >= capacity(newShift)) {
+            // 樹的高度不足時，在上方加一層，舊的根成為最左邊的子節點
+            Object[] grown = new Object[WIDTH];
+            grown[0] = newRoot;
+            newRoot = grown;
+            newShift += BITS;
+        }
+        return new PersistentIntMap<>(assoc(newRoot, newShift, key, value), newShift);
+    }
+
+    // 樹的層數，也就是每次 put 需複製的節點數
+    int depth() {
+        return shift / BITS + 1;
+    }
+
+    // 依鍵的順序回報兩個版本間不同的項目；共用的子樹直接略過，成本與差異的大小成正比
+    static <V> void diff(PersistentIntMap<V> a, PersistentIntMap<V> b, DiffVisitor<V> visitor) {
+        int shift = Math.max(a.shift, b.shift);
+        diffNode(lift(a.root, a.shift, shift), lift(b.root, b.shift, shift), shift, 0, visitor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void diffNode(Object[] a, Object[] b, int shift, int base, DiffVisitor<V> visitor) {
+        if (a == b) return;
+        for (int i = 0; i < WIDTH; i++) {
+            Object childA = a == null ? null : a[i];
+            Object childB = b == null ? null : b[i];
+            if (childA == childB) continue;
+            if (shift == 0) {
+                visitor.changed(base + i, (V) childA, (V) childB);
+            } else {
+                diffNode((Object[]) childA, (Object[]) childB, shift - BITS, base + (i << shift), visitor);
+            }
+        }
+    }
+
+    private static Object[] lift(Object[] node, int from, int to) {
+        if (node == null) return null;
+        for (int level = from; level < to; level += BITS) {
+            Object[] parent = new Object[WIDTH];
+            parent[0] = node;
+            node = parent;
+        }
+        return node;
+    }
+
+    private static Object[] assoc(Object[] node, int shift, int key, Object value) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        int index = (key >>> shift) & MASK;
+        if (shift == 0) {
+            copy[index] = value;
+        } else {
+            copy[index] = assoc((Object[]) copy[index], shift - BITS, key, value);
+        }
+        return copy;
+    }
+
+    private static long capacity(int shift) {
+        return 1L << (shift + BITS);
+    }
+}
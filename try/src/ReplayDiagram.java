@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 只保存形狀與連線的圖表：不含索引、覆蓋計數、選取與復原紀錄，也不碰 Swing，
+// 背景執行緒壓縮編輯日誌時在上面重播快照與日誌。修改的結果與 CanvasPanel 相同
+class ReplayDiagram implements DiagramModel {
+    private final ZOrder shapes = new ZOrder();
+    private final ArrayList<Link> links = new ArrayList<>();
+
+    @Override
+    public List<Shape> getShapes() {
+        return shapes.toList();
+    }
+
+    @Override
+    public List<Link> getLinks() {
+        return Collections.unmodifiableList(links);
+    }
+
+    @Override
+    public void setDiagram(List<Shape> topShapes, List<Link> newLinks) {
+        shapes.clear();
+        links.clear();
+        for (Shape shape : topShapes) {
+            shapes.add(shape);
+        }
+        for (Link link : newLinks) {
+            links.add(link);
+            link.attach();
+        }
+    }
+
+    @Override
+    public Shape addShape(String type, int x, int y, int id, long z) {
+        Shape shape = Shape.create(type, x, y);
+        shape.id = id;
+        shape.z = z;
+        shapes.add(shape);
+        return shape;
+    }
+
+    @Override
+    public Link addLink(String type, Shape start, Shape end, int startX, int startY, int endX, int endY, int id) {
+        Link link = new Link(type, start, end, startX, startY, endX, endY);
+        link.id = id;
+        links.add(link);
+        link.attach();
+        return link;
+    }
+
+    @Override
+    public void translateShape(Shape shape, int deltaX, int deltaY) {
+        shape.x += deltaX;
+        shape.y += deltaY;
+        for (Link link : shape.links) {
+            if (link.start.isWithin(shape)) {
+                link.moveEndpoint(true, link.start, worldX(link.start), worldY(link.start), deltaX, deltaY);
+            }
+            if (link.end.isWithin(shape)) {
+                link.moveEndpoint(false, link.end, worldX(link.end), worldY(link.end), deltaX, deltaY);
+            }
+        }
+    }
+
+    // 子形狀的座標相對於上層，沿著上層累加得到畫布座標
+    private static int worldX(Shape shape) {
+        int x = 0;
+        for (Shape s = shape; s != null; s = s.parent) {
+            x += s.x;
+        }
+        return x;
+    }
+
+    private static int worldY(Shape shape) {
+        int y = 0;
+        for (Shape s = shape; s != null; s = s.parent) {
+            y += s.y;
+        }
+        return y;
+    }
+
+    @Override
+    public void restackShape(Shape shape, long z) {
+        shapes.move(shape, z);
+    }
+
+    @Override
+    public Shape groupShapes(ArrayList<Shape> children, int id, long z) {
+        for (Shape child : children) {
+            shapes.remove(child);
+        }
+        Shape composite = Shape.group(children);
+        composite.id = id;
+        composite.z = z;
+        shapes.add(composite);
+        return composite;
+    }
+
+    @Override
+    public void ungroupShape(Shape composite, long firstZ) {
+        shapes.remove(composite);
+        composite.ungroup(firstZ);
+        for (Shape child : composite.children) {
+            shapes.add(child);
+        }
+    }
+
+    @Override
+    public void setLabel(Shape shape, ShapeLabel label) {
+        shape.label = label;
+    }
+
+    // 與 CanvasPanel.applyHistoryStep 的順序相同：先移除連線，再還原形狀，最後加回連線
+    @Override
+    public void applyHistoryStep(EditHistory.Step step) {
+        for (EditHistory.LinkState state : step.links) {
+            if (!state.present && state.link.isAttached()) {
+                links.remove(state.link);
+                state.link.detach();
+            }
+        }
+
+        for (EditHistory.ShapeState state : step.shapes) {
+            Shape shape = state.shape;
+            if (shape.parent == null && shapes.contains(shape)) shapes.remove(shape);
+        }
+        for (EditHistory.ShapeState state : step.shapes) {
+            Shape shape = state.shape;
+            shape.parent = state.present ? state.parent : null;
+            shape.label = state.label;
+            shape.x = state.x;
+            shape.y = state.y;
+            shape.z = state.z;
+        }
+        for (EditHistory.ShapeState state : step.shapes) {
+            if (!state.present) continue;
+            Shape shape = state.shape;
+            if (shape.isComposite()) shape.rebuildLinks();
+            if (state.parent == null) shapes.add(shape);
+        }
+
+        for (EditHistory.LinkState state : step.links) {
+            if (!state.present) continue;
+            Link link = state.link;
+            if (!link.isAttached()) {
+                insertById(link);
+                link.attach();
+            }
+            link.startX = state.startX;
+            link.startY = state.startY;
+            link.endX = state.endX;
+            link.endY = state.endY;
+        }
+    }
+
+    // 連線依編號排列，復原後放回原本的位置
+    private void insertById(Link link) {
+        int low = 0, high = links.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (links.get(mid).id < link.id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        links.add(low, link);
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Predicate;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+
+// 畫布上選取的最上層形狀：保留加入的順序（CanvasPanel 依 z 由下到上加入），
+// 另以 identity set 提供 O(1) 的成員判斷。內容改變時在同一個執行緒上通知 ChangeListener，
+// 每次操作最多通知一次
+final class SelectionModel implements Iterable<Shape> {
+    private final ArrayList<Shape> shapes = new ArrayList<>();
+    private final Set<Shape> members = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final EventListenerList listeners = new EventListenerList();
+    private ChangeEvent changeEvent = null;
+
+    boolean contains(Shape shape) {
+        return members.contains(shape);
+    }
+
+    int size() {
+        return shapes.size();
+    }
+
+    boolean isEmpty() {
+        return shapes.isEmpty();
+    }
+
+    // 第一個選取的形狀，沒有選取時為 null
+    Shape first() {
+        return shapes.isEmpty() ? null : shapes.get(0);
+    }
+
+    // 依選取順序的快照
+    ArrayList<Shape> toList() {
+        return new ArrayList<>(shapes);
+    }
+
+    // 只選取 shape
+    void set(Shape shape) {
+        if (shapes.size() == 1 && shapes.get(0) == shape) return;
+        shapes.clear();
+        members.clear();
+        shapes.add(shape);
+        members.add(shape);
+        fireStateChanged();
+    }
+
+    // 以 selected 取代目前的選取，順序與 selected 相同
+    void setAll(Collection<Shape> selected) {
+        shapes.clear();
+        members.clear();
+        for (Shape shape : selected) {
+            if (members.add(shape)) shapes.add(shape);
+        }
+        fireStateChanged();
+    }
+
+    void clear() {
+        if (shapes.isEmpty()) return;
+        shapes.clear();
+        members.clear();
+        fireStateChanged();
+    }
+
+    void removeIf(Predicate<Shape> filter) {
+        if (shapes.removeIf(filter)) {
+            members.clear();
+            members.addAll(shapes);
+            fireStateChanged();
+        }
+    }
+
+    void addChangeListener(ChangeListener listener) {
+        listeners.add(ChangeListener.class, listener);
+    }
+
+    void removeChangeListener(ChangeListener listener) {
+        listeners.remove(ChangeListener.class, listener);
+    }
+
+    private void fireStateChanged() {
+        for (ChangeListener listener : listeners.getListeners(ChangeListener.class)) {
+            if (changeEvent == null) changeEvent = new ChangeEvent(this);
+            listener.stateChanged(changeEvent);
+        }
+    }
+
+    // 依選取順序走訪；走訪時不可修改選取
+    @Override
+    public Iterator<Shape> iterator() {
+        return Collections.unmodifiableList(shapes).iterator();
+    }
+}
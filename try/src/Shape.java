@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+// 形狀模型：rect、oval，或由多個子形狀組成的 composite
+class Shape {
+    // 穩定的編號，由 CanvasPanel 指定，供檔案與編輯日誌引用
+    int id;
+    final String type;
+    // 最上層形狀為畫布座標，子形狀為相對於上層 composite 的位移
+    int x, y, width, height;
+
+    // 標籤設定，僅 rect / oval 使用
+    ShapeLabel label;
+    // 子形狀，僅 composite 使用
+    final ArrayList<Shape> children;
+    // 所屬的 composite，最上層形狀為 null
+    Shape parent;
+
+    // 端點落在此形狀或其子孫上的連線
+    final ArrayList<Link> links = new ArrayList<>();
+
+    // 被多少個更高層形狀的邊界覆蓋，由 CanvasPanel 維護，子形狀恆為 0
+    int coverCount;
+    // 堆疊順序，值越大越上層；只對最上層形狀有意義
+    long z;
+    // 在 ZOrder 中相鄰的下一層與上一層形狀，由 ZOrder 維護
+    Shape below, above;
+
+    // 畫布座標的快取，由 CanvasPanel 計算；worldEpoch 與 CanvasPanel 目前的值不同時失效
+    int worldX, worldY;
+    int worldEpoch = -1;
+
+    Shape(String type, int x, int y, int width, int height) {
+        this(type, x, y, width, height, null);
+    }
+
+    Shape(String type, int x, int y, int width, int height, ArrayList<Shape> children) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.children = children;
+    }
+
+    // 新建的 rect / oval，大小依類型而定
+    static Shape create(String type, int x, int y) {
+        int width = type.equals("oval") ? 120 : 90;
+        int height = type.equals("oval") ? 80 : 120;
+        return new Shape(type, x, y, width, height);
+    }
+
+    // 把最上層形狀組合成新的 composite：邊界為子形狀的聯集，子形狀改以它為原點
+    static Shape group(ArrayList<Shape> children) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (Shape shape : children) {
+            minX = Math.min(minX, shape.x);
+            minY = Math.min(minY, shape.y);
+            maxX = Math.max(maxX, shape.x + shape.width);
+            maxY = Math.max(maxY, shape.y + shape.height);
+        }
+
+        Shape composite = new Shape("composite", minX, minY, maxX - minX, maxY - minY, children);
+        for (Shape child : children) {
+            child.parent = composite;
+            child.x -= minX;
+            child.y -= minY;
+        }
+        composite.rebuildLinks();
+        return composite;
+    }
+
+    // 拆開 composite：子形狀換回畫布座標，依序以 firstZ、firstZ + 1 ... 成為最上層形狀
+    void ungroup(long firstZ) {
+        long z = firstZ;
+        for (Shape child : children) {
+            child.parent = null;
+            child.x += x;
+            child.y += y;
+            child.z = z++;
+        }
+    }
+
+    // composite 的連線為所有子形狀連線的聯集，內部連線只登記一次
+    void rebuildLinks() {
+        LinkedHashSet<Link> childLinks = new LinkedHashSet<>();
+        for (Shape child : children) {
+            childLinks.addAll(child.links);
+        }
+        links.clear();
+        links.addAll(childLinks);
+    }
+
+    // 控制點相對於左上角的位移 {dx0, dy0, dx1, dy1, ...}，只與類型和大小有關，
+    // 因此移動時不需重算；大小改變時才重新產生
+    private int[] controlPoints;
+    private int controlPointsWidth, controlPointsHeight;
+
+    int[] controlPointOffsets() {
+        if (controlPoints == null || controlPointsWidth != width || controlPointsHeight != height) {
+            int w = width, h = height;
+            if (type.equals("oval")) {
+                controlPoints = new int[]{
+                    w / 2, 0,    // 上
+                    w / 2, h,    // 下
+                    0, h / 2,    // 左
+                    w, h / 2     // 右
+                };
+            } else {
+                controlPoints = new int[]{
+                    0, 0, w, 0, 0, h, w, h,                  // 四角
+                    w / 2, 0, w / 2, h, 0, h / 2, w, h / 2   // 中點
+                };
+            }
+            controlPointsWidth = w;
+            controlPointsHeight = h;
+        }
+        return controlPoints;
+    }
+
+    boolean isComposite() {
+        return children != null;
+    }
+
+    // 是否為 root 本身或其子孫
+    boolean isWithin(Shape root) {
+        for (Shape s = this; s != null; s = s.parent) {
+            if (s == root) return true;
+        }
+        return false;
+    }
+
+    // 所屬的最上層形狀，最上層形狀為自己
+    Shape root() {
+        Shape s = this;
+        while (s.parent != null) {
+            s = s.parent;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,35 @@
+import java.awt.Color;
+import java.util.Objects;
+
+// 形狀上的標籤設定（不可變）
+class ShapeLabel {
+    final String text;
+    final String shape;
+    final Color color;
+    final int fontSize;
+
+    // 排版快取，由 LabelLayout 在第一次繪製時設定
+    LabelLayout layout;
+
+    ShapeLabel(String text, String shape, Color color, int fontSize) {
+        this.text = text;
+        this.shape = shape;
+        this.color = color;
+        this.fontSize = fontSize;
+    }
+
+    // 內容相同的標籤視為相等，供 LabelLayout 共用排版
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ShapeLabel)) return false;
+        ShapeLabel other = (ShapeLabel) o;
+        return fontSize == other.fontSize && text.equals(other.text) && shape.equals(other.shape)
+            && color.getRGB() == other.color.getRGB();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(text, shape, color.getRGB(), fontSize);
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// 均勻網格空間索引：依物件邊界把物件放進固定大小的格子，點查詢只需檢查一個格子
+class SpatialGrid<T> {
+    private final int cellSize;
+    private final CellTable<T> cells = new CellTable<>();
+    // 每個物件目前佔用的格子範圍 {minCol, minRow, maxCol, maxRow}
+    private final IdentityHashMap<T, int[]> ranges = new IdentityHashMap<>();
+    private final Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public SpatialGrid(int cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void insert(T item, int x, int y, int w, int h) {
+        int[] range = {cell(x), cell(y), cell(x + w), cell(y + h)};
+        ranges.put(item, range);
+        addToCells(item, range);
+    }
+
+    public void remove(T item) {
+        int[] range = ranges.remove(item);
+        if (range != null) {
+            removeFromCells(item, range);
+        }
+    }
+
+    // 物件移動後更新索引；格子範圍沒變時不做任何事
+    public void update(T item, int x, int y, int w, int h) {
+        int[] range = ranges.get(item);
+        if (range == null) {
+            insert(item, x, y, w, h);
+            return;
+        }
+
+        int minCol = cell(x), minRow = cell(y), maxCol = cell(x + w), maxRow = cell(y + h);
+        if (range[0] == minCol && range[1] == minRow && range[2] == maxCol && range[3] == maxRow) return;
+
+        removeFromCells(item, range);
+        range[0] = minCol;
+        range[1] = minRow;
+        range[2] = maxCol;
+        range[3] = maxRow;
+        addToCells(item, range);
+    }
+
+    public boolean contains(T item) {
+        return ranges.containsKey(item);
+    }
+
+    public void clear() {
+        cells.clear();
+        ranges.clear();
+    }
+
+    // 找出所在格子可能包含該點的物件（呼叫端需再做精確判斷）
+    public void query(int x, int y, List<T> out) {
+        ArrayList<T> bucket = cells.get(key(cell(x), cell(y)));
+        if (bucket != null) out.addAll(bucket);
+    }
+
+    // 找出邊界可能與矩形相交的物件，每個物件只回傳一次
+    public void query(int x, int y, int w, int h, List<T> out) {
+        query(x, y, w, h, out, seen);
+    }
+
+    // 同上，以呼叫端的 seen 去除重複；索引沒有被修改時，多個執行緒可各自以自己的 seen 同時查詢
+    public void query(int x, int y, int w, int h, List<T> out, Set<T> seen) {
+        int minCol = cell(x), minRow = cell(y), maxCol = cell(x + w), maxRow = cell(y + h);
+        if (minCol == maxCol && minRow == maxRow) {
+            query(x, y, out);
+            return;
+        }
+
+        seen.clear();
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                ArrayList<T> bucket = cells.get(key(col, row));
+                if (bucket == null) continue;
+                for (T item : bucket) {
+                    if (seen.add(item)) out.add(item);
+                }
+            }
+        }
+        seen.clear();
+    }
+
+    private void addToCells(T item, int[] range) {
+        for (int col = range[0]; col <= range[2]; col++) {
+            for (int row = range[1]; row <= range[3]; row++) {
+                cells.getOrCreate(key(col, row)).add(item);
+            }
+        }
+    }
+
+    private void removeFromCells(T item, int[] range) {
+        for (int col = range[0]; col <= range[2]; col++) {
+            for (int row = range[1]; row <= range[3]; row++) {
+                long key = key(col, row);
+                ArrayList<T> bucket = cells.get(key);
+                if (bucket == null) continue;
+                // 以參考比較移除，避免 equals 的語意差異
+                for (int i = bucket.size() - 1; i >= 0; i--) {
+                    if (bucket.get(i) == item) {
+                        bucket.set(i, bucket.get(bucket.size() - 1));
+                        bucket.remove(bucket.size() - 1);
+                        break;
+                    }
+                }
+                if (bucket.isEmpty()) cells.remove(key);
+            }
+        }
+    }
+
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    // 以 long 為鍵的開放定址雜湊表，查詢格子時不需把座標裝箱
+    private static final class CellTable<T> {
+        private long[] keys = new long[64];
+        private ArrayList<T>[] buckets = newBuckets(64);
+        private int size;
+
+        ArrayList<T> get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); buckets[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return buckets[i];
+            }
+            return null;
+        }
+
+        ArrayList<T> getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for (; buckets[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return buckets[i];
+            }
+
+            ArrayList<T> bucket = new ArrayList<>();
+            keys[i] = key;
+            buckets[i] = bucket;
+            if (++size * 2 > keys.length) grow();
+            return bucket;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (buckets[i] != null && keys[i] != key) i = (i + 1) & mask;
+            if (buckets[i] == null) return;
+
+            // 線性探測的刪除：把後面同一串的項目往前移，維持查詢路徑不中斷
+            buckets[i] = null;
+            size--;
+            for (int j = (i + 1) & mask; buckets[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    keys[i] = keys[j];
+                    buckets[i] = buckets[j];
+                    buckets[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(buckets, null);
+            size = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            ArrayList<T>[] oldBuckets = buckets;
+            keys = new long[oldKeys.length * 2];
+            buckets = newBuckets(oldKeys.length * 2);
+
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldBuckets[j] == null) continue;
+                int i = slot(oldKeys[j], mask);
+                while (buckets[i] != null) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                buckets[i] = oldBuckets[j];
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <T> ArrayList<T>[] newBuckets(int length) {
+            return (ArrayList<T>[]) new ArrayList[length];
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+// 分塊平行繪製：把目標影像切成 TILE_SIZE 的區塊，每塊在 ForkJoinPool 上以自己的 BufferedImage
+// 與 Graphics2D 繪製，完成後複製回目標影像的對應位置。各區塊以整數像素平移，
+// 只有曲線的反鋸齒邊緣可能因座標的浮點精度不同而與整張一次繪製差幾個色階。
+// Painter 會在多個執行緒上同時呼叫，只能讀取圖表
+final class TileRenderer {
+    static final int TILE_SIZE = 256;
+
+    // 以 g 繪製會畫到 worldBounds（畫布座標）內的物件；g 已設定好畫布到區塊的轉換，
+    // 超出物件邊界的部分（箭頭、端點、過長的標籤）需由 Painter 自行放寬。
+    // tile 為區塊的編號，與 worldTiles、bucket 回傳的清單索引相同
+    interface Painter {
+        void paint(Graphics2D g, int tile, Rectangle worldBounds);
+    }
+
+    private TileRenderer() {
+    }
+
+    // 區塊數量與可用的執行緒都超過一個時才值得平行繪製
+    static boolean isWorthwhile(int width, int height) {
+        return ForkJoinPool.getCommonPoolParallelism() > 1 && (width > TILE_SIZE || height > TILE_SIZE);
+    }
+
+    // target 須為 TYPE_INT_RGB；toDevice 為畫布座標到 target 像素座標的轉換
+    static void render(BufferedImage target, Color background, AffineTransform toDevice, Painter painter) {
+        if (target.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("只支援 TYPE_INT_RGB 影像");
+        }
+        List<Rectangle> worldTiles = worldTiles(target.getWidth(), target.getHeight(), toDevice);
+
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        int index = 0;
+        for (int tileY = 0; tileY < target.getHeight(); tileY += TILE_SIZE) {
+            for (int tileX = 0; tileX < target.getWidth(); tileX += TILE_SIZE) {
+                Rectangle tile = new Rectangle(tileX, tileY,
+                    Math.min(TILE_SIZE, target.getWidth() - tileX), Math.min(TILE_SIZE, target.getHeight() - tileY));
+                int number = index++;
+                Rectangle world = worldTiles.get(number);
+                tasks.add(ForkJoinTask.adapt(() -> renderTile(target, tile, number, world, background, toDevice, painter)));
+            }
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    // 各區塊在畫布上的範圍，外加一個像素涵蓋反鋸齒的邊緣，向外取整；依區塊編號排列（逐列由左到右）
+    static List<Rectangle> worldTiles(int width, int height, AffineTransform toDevice) {
+        AffineTransform toWorld = inverse(toDevice);
+        ArrayList<Rectangle> tiles = new ArrayList<>();
+        for (int tileY = 0; tileY < height; tileY += TILE_SIZE) {
+            for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+                int tileWidth = Math.min(TILE_SIZE, width - tileX), tileHeight = Math.min(TILE_SIZE, height - tileY);
+                tiles.add(toWorld(toWorld, tileX, tileY, tileWidth, tileHeight));
+            }
+        }
+        return tiles;
+    }
+
+    // 整個 width × height 的目標在畫布上的範圍，與 worldTiles 相同放寬一個像素
+    static Rectangle worldBounds(int width, int height, AffineTransform toDevice) {
+        return toWorld(inverse(toDevice), 0, 0, width, height);
+    }
+
+    private static AffineTransform inverse(AffineTransform toDevice) {
+        try {
+            return toDevice.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("無法反轉的轉換", e);
+        }
+    }
+
+    private static Rectangle toWorld(AffineTransform toWorld, int x, int y, int width, int height) {
+        Rectangle2D world = toWorld.createTransformedShape(new Rectangle(x - 1, y - 1, width + 2, height + 2)).getBounds2D();
+        int x1 = (int) Math.floor(world.getMinX()), y1 = (int) Math.floor(world.getMinY());
+        int x2 = (int) Math.ceil(world.getMaxX()), y2 = (int) Math.ceil(world.getMaxY());
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    // 依物件在畫布上的範圍（bounds，需已含箭頭等超出部分）把物件分到可能畫到它的區塊，
+    // 回傳依區塊編號排列的清單，每個清單內保持 items 的順序。只走訪 items 一次
+    static <T> List<List<T>> bucket(int width, int height, AffineTransform toDevice,
+                                    List<T> items, Function<T, Rectangle> bounds) {
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE, rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        ArrayList<List<T>> buckets = new ArrayList<>(columns * rows);
+        for (int i = 0; i < columns * rows; i++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        double[] corners = new double[8];
+        for (T item : items) {
+            Rectangle r = bounds.apply(item);
+            corners[0] = r.x;
+            corners[1] = r.y;
+            corners[2] = r.x + (double) r.width;
+            corners[3] = r.y;
+            corners[4] = r.x;
+            corners[5] = r.y + (double) r.height;
+            corners[6] = r.x + (double) r.width;
+            corners[7] = r.y + (double) r.height;
+            toDevice.transform(corners, 0, corners, 0, 4);
+            double minX = Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6]));
+            double maxX = Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6]));
+            double minY = Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7]));
+            double maxY = Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7]));
+
+            // 與 worldTiles 相同放寬一個像素
+            int firstColumn = (int) Math.max(0, Math.floor((minX - 1) / TILE_SIZE));
+            int lastColumn = (int) Math.min(columns - 1, Math.floor((maxX + 1) / TILE_SIZE));
+            int firstRow = (int) Math.max(0, Math.floor((minY - 1) / TILE_SIZE));
+            int lastRow = (int) Math.min(rows - 1, Math.floor((maxY + 1) / TILE_SIZE));
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    buckets.get(row * columns + column).add(item);
+                }
+            }
+        }
+        return buckets;
+    }
+
+    private static void renderTile(BufferedImage target, Rectangle tile, int number, Rectangle world, Color background,
+                                   AffineTransform toDevice, Painter painter) {
+        BufferedImage image = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, tile.width, tile.height);
+        g.translate(-tile.x, -tile.y);
+        g.transform(toDevice);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+
+        painter.paint(g, number, world);
+        g.dispose();
+
+        // 各區塊互不重疊，可同時寫入目標影像
+        target.getRaster().setDataElements(tile.x, tile.y, image.getRaster());
+    }
+}
@@ -1,12 +1,25 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class WorkflowEditor extends JFrame {
     private CanvasPanel canvas;
     private ToolbarPanel toolbar;
+    private EditJournal journal;
+    // 依目前選取啟用或停用的編輯選單項目
+    private JMenuItem groupMenuItem, ungroupMenuItem, frontMenuItem, backMenuItem;
 
     public WorkflowEditor() {
         setTitle("Workflow Design Editor");
@@ -48,6 +61,22 @@ public class WorkflowEditor extends JFrame {
 
         // 設定工具列與畫布的互動
         toolbar.setCanvasPanel(canvas);
+        canvas.getSelection().addChangeListener(e -> updateSelectionActions());
+        updateSelectionActions();
+        
+        // 還原上次未儲存的編輯並開始自動儲存
+        openJournal();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // 使用者關閉視窗屬於正常結束，下次啟動不需還原
+                if (journal != null) journal.close(true);
+            }
+        });
+        
+        // 復原紀錄的記憶體上限（MB）可用 workflow.history.mb 系統屬性指定
+        Long historyMegabytes = Long.getLong("workflow.history.mb");
+        if (historyMegabytes != null) canvas.setHistoryBudget(historyMegabytes << 20);
 
         setVisible(true);
     }
@@ -71,12 +100,79 @@ public class WorkflowEditor extends JFrame {
         // File 選單 
         JMenu fileMenu = new JMenu("File");
         fileMenu.setFont(font);
+        
+        // New
+        JMenuItem newMenuItem = new JMenuItem("New");
+        newMenuItem.setFont(font);
+        newMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                newDiagram();
+            }
+        });
+        
+        // Open
+        JMenuItem openMenuItem = new JMenuItem("Open...");
+        openMenuItem.setFont(font);
+        openMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                openDiagram();
+            }
+        });
+        
+        // Save
+        JMenuItem saveMenuItem = new JMenuItem("Save...");
+        saveMenuItem.setFont(font);
+        saveMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveDiagram();
+            }
+        });
+        
+        // Export
+        JMenuItem exportMenuItem = new JMenuItem("Export PNG...");
+        exportMenuItem.setFont(font);
+        exportMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                exportImage();
+            }
+        });
+        
+        fileMenu.add(newMenuItem);
+        fileMenu.add(openMenuItem);
+        fileMenu.add(saveMenuItem);
+        fileMenu.addSeparator();
+        fileMenu.add(exportMenuItem);
         menuBar.add(fileMenu);
         
         // Edit 選單
         JMenu editMenu = new JMenu("Edit");
         editMenu.setFont(font);
         
+        // Undo / Redo
+        JMenuItem undoMenuItem = new JMenuItem("Undo");
+        undoMenuItem.setFont(font);
+        undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        undoMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.undo();
+            }
+        });
+        
+        JMenuItem redoMenuItem = new JMenuItem("Redo");
+        redoMenuItem.setFont(font);
+        redoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        redoMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.redo();
+            }
+        });
+        
         // Label
         JMenuItem labelMenuItem = new JMenuItem("Label");
         labelMenuItem.setFont(font);
@@ -88,7 +184,7 @@ public class WorkflowEditor extends JFrame {
         });
         
         // Group 
-        JMenuItem groupMenuItem = new JMenuItem("Group");
+        groupMenuItem = new JMenuItem("Group");
         groupMenuItem.setFont(font);
         groupMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -98,7 +194,7 @@ public class WorkflowEditor extends JFrame {
         });
         
         // Ungroup 
-        JMenuItem ungroupMenuItem = new JMenuItem("Ungroup");
+        ungroupMenuItem = new JMenuItem("Ungroup");
         ungroupMenuItem.setFont(font);
         ungroupMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -107,27 +203,185 @@ public class WorkflowEditor extends JFrame {
             }
         });
         
+        // Bring to Front / Send to Back
+        frontMenuItem = new JMenuItem("Bring to Front");
+        frontMenuItem.setFont(font);
+        frontMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_CLOSE_BRACKET, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        frontMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.bringSelectedToFront();
+            }
+        });
+        
+        backMenuItem = new JMenuItem("Send to Back");
+        backMenuItem.setFont(font);
+        backMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        backMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.sendSelectedToBack();
+            }
+        });
+        
         // 添加到編輯選單
+        editMenu.add(undoMenuItem);
+        editMenu.add(redoMenuItem);
+        editMenu.addSeparator();
         editMenu.add(labelMenuItem);  
         editMenu.addSeparator();
         editMenu.add(groupMenuItem);
         editMenu.add(ungroupMenuItem);
+        editMenu.addSeparator();
+        editMenu.add(frontMenuItem);
+        editMenu.add(backMenuItem);
         menuBar.add(editMenu);
+        
+        // View 選單（滾輪捲動、Ctrl + 滾輪縮放、中鍵或右鍵拖曳平移）
+        JMenu viewMenu = new JMenu("View");
+        viewMenu.setFont(font);
+        
+        JMenuItem zoomInMenuItem = new JMenuItem("Zoom In");
+        zoomInMenuItem.setFont(font);
+        zoomInMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.zoomIn();
+            }
+        });
+        
+        JMenuItem zoomOutMenuItem = new JMenuItem("Zoom Out");
+        zoomOutMenuItem.setFont(font);
+        zoomOutMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.zoomOut();
+            }
+        });
+        
+        JMenuItem resetViewMenuItem = new JMenuItem("Reset Zoom");
+        resetViewMenuItem.setFont(font);
+        resetViewMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.resetView();
+            }
+        });
+        
+        // 效能統計面板：各繪製階段與滑鼠事件的耗時百分位數
+        JCheckBoxMenuItem overlayMenuItem = new JCheckBoxMenuItem("Performance Overlay");
+        overlayMenuItem.setFont(font);
+        overlayMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        overlayMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setPerformanceOverlayVisible(overlayMenuItem.isSelected());
+            }
+        });
+        
+        viewMenu.add(zoomInMenuItem);
+        viewMenu.add(zoomOutMenuItem);
+        viewMenu.add(resetViewMenuItem);
+        viewMenu.addSeparator();
+        viewMenu.add(overlayMenuItem);
+        menuBar.add(viewMenu);
     
         return menuBar;
     }
     
+    // 自動儲存目錄可用 workflow.autosave.dir 系統屬性指定
+    private void openJournal() {
+        String defaultDir = Paths.get(System.getProperty("user.home"), ".workflow-editor", "autosave").toString();
+        Path directory = Paths.get(System.getProperty("workflow.autosave.dir", defaultDir));
+        try {
+            journal = EditJournal.open(directory, canvas, () -> JOptionPane.showConfirmDialog(this,
+                "上次沒有正常結束，要還原自動儲存的圖表嗎？", "還原", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "無法啟用自動儲存：" + ex.getMessage(), "錯誤", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // 清空畫布，開始新的圖表
+    private void newDiagram() {
+        canvas.clearDiagram();
+        if (journal != null) journal.recordNew();
+    }
+    
+    // 開啟圖表檔案
+    private void openDiagram() {
+        JFileChooser chooser = createDiagramChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        File file = chooser.getSelectedFile();
+        try {
+            DiagramFile.load(canvas, file);
+            if (journal != null) journal.recordOpen(file);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "無法開啟檔案：" + ex.getMessage(), "錯誤", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // 儲存圖表檔案，未指定副檔名時自動加上
+    private void saveDiagram() {
+        JFileChooser chooser = createDiagramChooser();
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        File file = chooser.getSelectedFile();
+        if (!file.getName().contains(".")) {
+            file = new File(file.getParentFile(), file.getName() + "." + DiagramFile.EXTENSION);
+        }
+        try {
+            DiagramFile.save(canvas, file);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "無法儲存檔案：" + ex.getMessage(), "錯誤", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // 以原始大小把整張圖表匯出成 PNG
+    private void exportImage() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("PNG Image (*.png)", "png"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        File file = chooser.getSelectedFile();
+        if (!file.getName().contains(".")) {
+            file = new File(file.getParentFile(), file.getName() + ".png");
+        }
+        try {
+            ImageIO.write(canvas.renderImage(1.0), "png", file);
+        } catch (IOException | IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "無法匯出影像：" + ex.getMessage(), "錯誤", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private JFileChooser createDiagramChooser() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("Workflow Diagram (*." + DiagramFile.EXTENSION + ")",
+                DiagramFile.EXTENSION));
+        return chooser;
+    }
+    
+    // 組合需要兩個以上的形狀，拆開需要單一的組合形狀，堆疊順序需要至少一個形狀
+    private void updateSelectionActions() {
+        SelectionModel selection = canvas.getSelection();
+        Shape first = selection.first();
+        groupMenuItem.setEnabled(selection.size() >= 2);
+        ungroupMenuItem.setEnabled(selection.size() == 1 && first.isComposite());
+        frontMenuItem.setEnabled(first != null);
+        backMenuItem.setEnabled(first != null);
+    }
+    
     // 顯示標籤樣式對話框
     private void showLabelStyleDialog() {
         // 檢查是否有選中的形狀
-        if (canvas.selectedShapes.isEmpty()) {
+        Shape selectedShape = canvas.getSelection().first();
+        if (selectedShape == null) {
             JOptionPane.showMessageDialog(this, "請先選擇一個形狀", "提示", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         
         // 檢查選中的是否為組合形狀
-        Object[] selectedShape = canvas.selectedShapes.get(0);
-        if (selectedShape[0].equals("composite")) {
+        if (selectedShape.isComposite()) {
             JOptionPane.showMessageDialog(this, "無法為組合形狀設置標籤", "提示", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
@@ -139,13 +393,13 @@ public class WorkflowEditor extends JFrame {
         String currentFontSize = "12";
         
         // 檢查選中形狀是否已有標籤設置
-        if (selectedShape.length > 5 && selectedShape[5] != null) {
-            Object[] labelSettings = (Object[]) selectedShape[5];
-            currentText = (String) labelSettings[0];
-            currentShape = (String) labelSettings[1];
+        if (selectedShape.label != null) {
+            ShapeLabel labelSettings = selectedShape.label;
+            currentText = labelSettings.text;
+            currentShape = labelSettings.shape;
             
             // 根據顏色對象反推顏色名稱
-            Color labelColor = (Color) labelSettings[2];
+            Color labelColor = labelSettings.color;
             if (labelColor.getRed() == 255 && labelColor.getGreen() == 200 && labelColor.getBlue() == 200) {
                 currentColor = "red";
             } else if (labelColor.getRed() == 255 && labelColor.getGreen() == 255 && labelColor.getBlue() == 200) {
@@ -156,7 +410,7 @@ public class WorkflowEditor extends JFrame {
                 currentColor = "green";
             }
             
-            currentFontSize = String.valueOf(labelSettings[3]);
+            currentFontSize = String.valueOf(labelSettings.fontSize);
         }
         
         // 創建對話框
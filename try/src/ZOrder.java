@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// 最上層形狀的堆疊順序：以 Shape.below / above 串成的雙向鏈結串列，由下到上依 z 遞增。
+// z 由呼叫端指定，移到最上層或最下層時取比兩端更大或更小的值，接到端點只需 O(1)；
+// 比較兩個形狀的上下只需比較 z。依任意 z 插入（復原、載入）時從最上層往下找位置。
+// 走訪時不可修改；多個執行緒可同時走訪
+final class ZOrder implements Iterable<Shape> {
+    private Shape bottom, top;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // 形狀是否在這個串列中；移除時會清掉鏈結，因此只需檢查鄰居
+    boolean contains(Shape shape) {
+        return shape.below != null || shape.above != null || top == shape;
+    }
+
+    // a 是否在 b 之上
+    static boolean isAbove(Shape a, Shape b) {
+        return a.z > b.z;
+    }
+
+    // 依 shape.z 插入；z 大於目前最上層時為 O(1)
+    void add(Shape shape) {
+        Shape below = top;
+        while (below != null && below.z > shape.z) {
+            below = below.below;
+        }
+        Shape above = below != null ? below.above : bottom;
+
+        shape.below = below;
+        shape.above = above;
+        if (below != null) below.above = shape; else bottom = shape;
+        if (above != null) above.below = shape; else top = shape;
+        size++;
+    }
+
+    void remove(Shape shape) {
+        if (shape.below != null) shape.below.above = shape.above; else bottom = shape.above;
+        if (shape.above != null) shape.above.below = shape.below; else top = shape.below;
+        shape.below = shape.above = null;
+        size--;
+    }
+
+    // 改變形狀的 z 並移到對應的位置；z 大於最上層或小於最下層時為 O(1)
+    void move(Shape shape, long z) {
+        remove(shape);
+        shape.z = z;
+        if (bottom != null && z < bottom.z) {
+            shape.above = bottom;
+            bottom.below = shape;
+            bottom = shape;
+            size++;
+        } else {
+            add(shape);
+        }
+    }
+
+    void clear() {
+        Shape shape = bottom;
+        while (shape != null) {
+            Shape next = shape.above;
+            shape.below = shape.above = null;
+            shape = next;
+        }
+        bottom = top = null;
+        size = 0;
+    }
+
+    // 由下到上的快照
+    ArrayList<Shape> toList() {
+        ArrayList<Shape> list = new ArrayList<>(size);
+        for (Shape shape = bottom; shape != null; shape = shape.above) {
+            list.add(shape);
+        }
+        return list;
+    }
+
+    // 由下到上走訪
+    @Override
+    public Iterator<Shape> iterator() {
+        return new Iterator<Shape>() {
+            private Shape next = bottom;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Shape next() {
+                if (next == null) throw new NoSuchElementException();
+                Shape shape = next;
+                next = shape.above;
+                return shape;
+            }
+        };
+    }
+}